@@ -55,20 +55,8 @@ public class ExperimenterAsmt7 {
 		for (double i = 0.01; i < 0.25; i += 0.01) {
 			nbc.setLambda(i);
 
-			// Keep track of number correct
-			int testCorrect = 0, trainCorrect = 0;
-			for (Example e : testArr) {
-				if (nbc.classify(e) == e.getLabel())
-					testCorrect++;
-			}
-			for (Example e : trainArr) {
-				if (nbc.classify(e) == e.getLabel())
-					trainCorrect++;
-			}
-
-			System.out
-					.println("lambda | testAcc | trainAcc: " + i + "\t" + (double) testCorrect / (double) testArr.size()
-							+ "\t" + (double) trainCorrect / (double) trainArr.size());
+			System.out.println("lambda | testAcc | trainAcc: " + i + "\t" + accuracy(nbc, testArr) + "\t"
+					+ accuracy(nbc, trainArr));
 		}
 
 	}
@@ -91,8 +79,6 @@ public class ExperimenterAsmt7 {
 		// 25 repetitions
 		for (int i = 0; i < 25; i++) {
 
-			int testCorrectPos = 0, trainCorrectPos = 0, testCorrectAll = 0, trainCorrectAll = 0;
-
 			DataSetSplit dss = ds.split(0.8);
 			DataSet trainDS = dss.getTrain();
 			DataSet testDS = dss.getTest();
@@ -108,27 +94,9 @@ public class ExperimenterAsmt7 {
 			nbcPos.setLambda(.02);
 			nbcAll.setLambda(.09);
 
-			// Get testing accuracies
-			for (Example e : testArr) {
-				if (nbcPos.classify(e) == e.getLabel())
-					testCorrectPos++;
-				if (nbcAll.classify(e) == e.getLabel())
-					testCorrectAll++;
-			}
-
-			// Get training accuracies
-			for (Example e : trainArr) {
-				if (nbcPos.classify(e) == e.getLabel())
-					trainCorrectPos++;
-				if (nbcAll.classify(e) == e.getLabel())
-					trainCorrectAll++;
-			}
-
 			// Accuracies for each iteration
-			System.out.println((double) testCorrectPos / (double) (testArr.size()) + "\t"
-					+ (double) trainCorrectPos / (double) (trainArr.size()) + "\t"
-					+ (double) testCorrectAll / (double) (testArr.size()) + "\t"
-					+ (double) trainCorrectAll / (double) (trainArr.size()));
+			System.out.println(accuracy(nbcPos, testArr) + "\t" + accuracy(nbcPos, trainArr) + "\t"
+					+ accuracy(nbcAll, testArr) + "\t" + accuracy(nbcAll, trainArr));
 
 		}
 	}
@@ -158,8 +126,9 @@ public class ExperimenterAsmt7 {
 		nbc.train(trainDS);
 
 		// sort prediction-confidence-label triples by decreasing order of confidence
-		for (Example e : testArr)
-			triples.add(new double[] { nbc.classify(e), nbc.confidence(e), e.getLabel() });
+		double[][] results = nbc.classify(testArr);
+		for (int i = 0; i < testArr.size(); i++)
+			triples.add(new double[] { results[0][i], results[1][i], testArr.get(i).getLabel() });
 
 		// anonymous function to compare confidences
 		Collections.sort(triples, (double[] p1, double[] p2) -> {
@@ -188,4 +157,22 @@ public class ExperimenterAsmt7 {
 
 	}
 
+	/**
+	 * @param classifier
+	 *            trained classifier
+	 * @param examples
+	 *            labeled examples
+	 * @return the fraction of the examples the classifier gets right
+	 */
+	private static double accuracy(Classifier classifier, List<Example> examples) {
+		double[] predictions = classifier.classify(examples)[0];
+
+		int correct = 0;
+		for (int i = 0; i < predictions.length; i++) {
+			if (predictions[i] == examples.get(i).getLabel())
+				correct++;
+		}
+		return (double) correct / (double) examples.size();
+	}
+
 }
\ No newline at end of file
@@ -17,58 +17,57 @@ import ml.data.Example;
  */
 public class AveragePerceptronClassifier extends PerceptronClassifier {
 	
+	/**
+	 * Train the averaged weights lazily: rather than adding every weight into the
+	 * running sum after each example, for each feature we keep
+	 * u = sum over mistakes of (example number * change in weight). The sum of
+	 * the weights over the examples up to the last mistake t is then t*w - u,
+	 * so a mistake only touches the example's non-zero features.
+	 */
 	public void train(DataSet data) {
 		initializeWeights(data.getAllFeatureIndices());
 		
 		ArrayList<Example> training = (ArrayList<Example>)data.getData().clone();
 
 		int total = 0;
-		int lastUpdate = 1;
+		int lastMistake = 0;
 		
-		// initialize the weights
-		HashMap<Integer, Double> sumWeights = getZeroWeights(weights.keySet());
-		double sumB = 0;
+		// initialize the weighted updates
+		HashMap<Integer, Double> timedUpdates = getZeroWeights(weights.keySet());
+		double timedB = 0;
 		
 		for( int it = 0; it < iterations; it++ ){
 			Collections.shuffle(training);
 			
 			for( Example e: training ){
-				if( getPrediction(e) != e.getLabel() ){
-					double label = e.getLabel();
-
-					// update the weights
-					for( Integer featureIndex: weights.keySet() ){
-						double featureValue = e.getFeature(featureIndex);
-						double oldSumWeight = sumWeights.get(featureIndex);
-						double oldWeight = weights.get(featureIndex);
-
-						// update the aggregate weights
-						sumWeights.put(featureIndex, oldSumWeight + lastUpdate*oldWeight);
-
+				double label = getTrainingLabel(e);
+				
+				if( getPrediction(e) != label ){
+					// update the weights and the weighted updates
+					for( Integer featureIndex: e.getFeatureSet() ){
+						double change = e.getFeature(featureIndex)*label;
 						
-						// update the basic weights
-						weights.put(featureIndex, oldWeight + featureValue*label);						
+						weights.put(featureIndex, weights.get(featureIndex) + change);
+						timedUpdates.put(featureIndex, timedUpdates.get(featureIndex) + total*change);
 					}
 
-					// update sumB
-					sumB += lastUpdate*b;
-					
 					// update b
 					b += label;
+					timedB += total*label;
 					
-					lastUpdate = 0;
+					lastMistake = total;
 				}
 				
 				total++;
-				lastUpdate++;
 			}
 		}
 		
-		// normalize the weights and save back into the weights vector
-		for( Integer featureIndex: sumWeights.keySet() ){
-			weights.put(featureIndex, sumWeights.get(featureIndex)/total);
+		// the summed weights don't include the examples after the last mistake
+		for( Integer featureIndex: weights.keySet() ){
+			double sumWeight = lastMistake*weights.get(featureIndex) - timedUpdates.get(featureIndex);
+			weights.put(featureIndex, sumWeight/total);
 		}
 		
-		b = sumB/total;
+		b = (lastMistake*b - timedB)/total;
 	}
 }
@@ -1,5 +1,7 @@
 package ml.classifiers;
 
+import java.util.List;
+
 import ml.data.DataSet;
 import ml.data.Example;
 
@@ -26,4 +28,45 @@ public interface Classifier {
 	public double classify(Example example);
 	
 	public double confidence(Example example);
+	
+	/**
+	 * Get what the classifier learned as a model that only holds what's needed
+	 * to classify, so the classifier (and its training data) can be thrown away.
+	 * Should only be called *after* train has been called.  The model doesn't
+	 * change if the classifier is changed or trained again afterwards.
+	 * 
+	 * @return the trained model
+	 */
+	public Model getModel();
+	
+	/**
+	 * Classify all of the examples.  Should only be called *after* train has been
+	 * called.  By default this calls classify and then confidence on each example
+	 * in turn; classifiers that can share work between the two calls or across
+	 * the examples override it.
+	 * 
+	 * @param examples
+	 * @return {the predicted labels, the confidences}, indexed like examples
+	 */
+	public default double[][] classify(List<Example> examples){
+		double[][] results = new double[2][examples.size()];
+		
+		for( int i = 0; i < examples.size(); i++ ){
+			Example e = examples.get(i);
+			results[0][i] = classify(e);
+			results[1][i] = confidence(e);
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Classify all of the examples in the data set
+	 * 
+	 * @param data
+	 * @return {the predicted labels, the confidences}, indexed like the examples in data
+	 */
+	public default double[][] classify(DataSet data){
+		return classify(data.getData());
+	}
 }
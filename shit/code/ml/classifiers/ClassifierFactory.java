@@ -11,6 +11,8 @@ public class ClassifierFactory {
 	public static final int DECISION_TREE = 0;
 	public static final int PERCEPTRON = 1;
 	public static final int KNN = 2;
+	public static final int RANDOM_FOREST = 3;
+	public static final int GRADIENT_BOOSTED_TREES = 4;
 
 	private int classifierType = 0;  // what classifier we want to instantiate
 	private int classifierParameter = 0; // what hyperparameter to set for the classifier
@@ -68,6 +70,22 @@ public class ClassifierFactory {
 			}
 			
 			return knn;
+		}else if( classifierType == 3 ){
+			RandomForestClassifier forest = new RandomForestClassifier();
+			
+			if( setClassifierParameter ){
+				forest.setNumTrees(classifierParameter);
+			}
+			
+			return forest;
+		}else if( classifierType == 4 ){
+			GradientBoostedTreesClassifier boosted = new GradientBoostedTreesClassifier();
+			
+			if( setClassifierParameter ){
+				boosted.setIterations(classifierParameter);
+			}
+			
+			return boosted;
 		}else{
 			throw new RuntimeException("Classifier type not found: " + classifierType);
 		}
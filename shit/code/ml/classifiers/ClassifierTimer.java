@@ -1,13 +1,85 @@
 package ml.classifiers;
 
+import java.util.HashMap;
+import java.util.Random;
+
 import ml.data.DataSet;
 import ml.data.DataSetSplit;
 import ml.data.Example;
 
 public class ClassifierTimer {
+	/**
+	 * Compare the train and classify times of decision trees and gradient boosted
+	 * trees on the titanic data and on bigger synthetic data sets
+	 * 
+	 * @param args unused
+	 */
+	public static void main(String[] args){
+		DataSet titanic = new DataSet("./data/titanic-train.csv", DataSet.CSVFILE);
+		timeTrees("titanic", titanic, 10);
+		
+		for( int n: new int[]{10000, 100000} ){
+			timeTrees("synthetic, " + n + " examples", syntheticData(n, 20, new Random(0)), 3);
+		}
+	}
+	
+	/**
+	 * Time a decision tree with each kind of split and gradient boosted trees
+	 * on the data
+	 */
+	private static void timeTrees(String name, DataSet dataset, int numRuns){
+		System.out.println("--- " + name + " ---");
+		
+		DecisionTreeClassifier zeroTree = new DecisionTreeClassifier();
+		zeroTree.setDepthLimit(10);
+		System.out.println("Decision tree (zero splits)");
+		timeClassifier(zeroTree, dataset, numRuns);
+		
+		DecisionTreeClassifier thresholdTree = new DecisionTreeClassifier();
+		thresholdTree.setDepthLimit(10);
+		thresholdTree.setSplitType(DecisionTreeClassifier.THRESHOLD_SPLITS);
+		System.out.println("Decision tree (threshold splits)");
+		timeClassifier(thresholdTree, dataset, numRuns);
+		
+		System.out.println("Gradient boosted trees");
+		timeClassifier(new GradientBoostedTreesClassifier(), dataset, numRuns);
+	}
+	
+	/**
+	 * Generate a data set with continuous features, where the label depends on
+	 * a few of the features non-linearly
+	 * 
+	 * @param n the number of examples
+	 * @param numFeatures the number of features (at least 3)
+	 * @param random
+	 * @return the data
+	 */
+	private static DataSet syntheticData(int n, int numFeatures, Random random){
+		HashMap<Integer, String> featureMap = new HashMap<Integer, String>();
+		for( int f = 0; f < numFeatures; f++ ){
+			featureMap.put(f, "x" + f);
+		}
+		
+		DataSet data = new DataSet(featureMap);
+		for( int i = 0; i < n; i++ ){
+			Example e = new Example();
+			double[] x = new double[numFeatures];
+			for( int f = 0; f < numFeatures; f++ ){
+				x[f] = random.nextGaussian();
+				e.addFeature(f, x[f]);
+			}
+			
+			double score = x[0] + 0.5*x[1]*x[1] - x[2] + 0.3*random.nextGaussian();
+			e.setLabel(score > 0.5 ? 1.0 : -1.0);
+			data.addData(e);
+		}
+		
+		return data;
+	}
+	
 	/**
 	 * Calculates the time to train and test the classifier averaged over numRuns on
-	 * 80/20 splits of the data
+	 * 80/20 splits of the data, and the size of the last model it trained
 	 * 
 	 * @param classifier
 	 * @param dataset 
@@ -15,6 +87,7 @@ public class ClassifierTimer {
 	public static void timeClassifier(Classifier classifier, DataSet dataset, int numRuns){
 		long trainSum = 0;
 		long classifySum = 0;
+		long numClassified = 0;
 		
 		for( int i = 0; i < numRuns; i++ ){
 			DataSetSplit split = dataset.split(0.8);			
@@ -28,22 +101,27 @@ public class ClassifierTimer {
 			start = System.currentTimeMillis();
 			classifyExamples(classifier, split.getTest());
 			classifySum += System.currentTimeMillis() - start;
+			numClassified += split.getTest().getData().size();
 		}
 
 		System.out.println("Average train time: " + ((double)trainSum)/numRuns/1000 + "s");
 		System.out.println("Average test time: " + ((double)classifySum)/numRuns/1000 + "s");
+		
+		if( classifySum > 0 ){
+			System.out.println("Examples classified per second: " + numClassified*1000/classifySum);
+		}
+		
+		System.out.println("Model size: " + classifier.getModel().memoryFootprint()/1024 + "KB");
 	}
 
 	/**
 	 * Classify all of the examples with the classifier. We don't care about the results
-	 * just that the classify function gets called for all of the examples.
+	 * just that the examples get classified, using the classifier's batch classification.
 	 * 
 	 * @param classifier
 	 * @param dataset
 	 */
 	private static void classifyExamples(Classifier classifier, DataSet dataset){
-		for( Example e: dataset.getData() ){
-			classifier.classify(e);
-		}
+		classifier.classify(dataset);
 	}	
 }
@@ -1,38 +1,185 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import ml.data.DataSet;
 import ml.data.Example;
+import ml.data.FeatureBins;
 import ml.utils.HashMapCounter;
+import ml.utils.Histogram;
 
 /**
  * Decision tree classifier that supports multiclass classification.
  * 
- * The classifier handles non-binary features, however, when deciding on splits it
- * considers splitting by comparing zero vs. non-zero for each feature.
+ * The classifier handles non-binary features, however, by default when deciding on
+ * splits it considers splitting by comparing zero vs. non-zero for each feature.
+ * With THRESHOLD_SPLITS, it instead splits on whether a feature is <= a threshold.
+ * The candidate thresholds come from binning each feature's values into quantiles
+ * once before training, and each node finds its best threshold from histograms of
+ * the label counts in each bin.  Only the smaller child of a node has its
+ * histogram counted from its examples; the bigger child's is the parent's minus
+ * the smaller one's.
  * 
  * @author dkauchak
  *
  */
 public class DecisionTreeClassifier implements Classifier{
+	// constants for the kinds of splits
+	public static final int ZERO_SPLITS = 0;
+	public static final int THRESHOLD_SPLITS = 1;
+	
 	//private DataSet allData;
 	private HashMap<Integer,String> featureMap;
 	private Set<Integer> featureIndices;
 	private DecisionTreeNode decisionTree;
+	
+	// the tree flattened into arrays for classifying
+	private DecisionTreeModel model;
+	
 	private int depthMax = Integer.MAX_VALUE;
+	private int splitType = ZERO_SPLITS;
+	private int maxBins = 32;
+	
+	// the labels in the training data
+	private double[] labels;
+	
+	// each feature gets a column in the split counts, in increasing order of
+	// feature index: featureColumns maps feature index -> column (-1 if it isn't
+	// a training feature) and columnFeatures maps back
+	private int[] featureColumns;
+	private int[] columnFeatures;
+	
+	// count tables for scoring splits that aren't in use by a node right now
+	private ConcurrentLinkedQueue<SplitCounts> splitCountsPool;
+	
+	// threshold splits never mark features as used
+	private static final BitSet NO_FEATURES = new BitSet();
+	
+	// nodes with at least this many examples score features and build their
+	// subtrees in parallel
+	private int parallelThreshold = 1000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	
+	// if > 0, each node only considers this many randomly chosen unused
+	// features (for random forests), chosen with randomness based on seed
+	private int featuresPerNode = 0;
+	private long seed = 0;
+	
+	// the training examples, their label positions, and the order of their
+	// indices, which is partitioned in place as the tree is built so that each
+	// node's examples are a contiguous range
+	private ArrayList<Example> trainData;
+	private int[] exampleLabels;
+	private int[] order;
+	private int[] partitionBuffer;
+	
+	// for threshold splits: the feature bins, the bin of each of the training
+	// examples' stored features, and histograms that aren't in use by a node
+	private FeatureBins bins;
+	private int[][] exampleBins;
+	private ConcurrentLinkedQueue<Histogram> histogramPool;
 	
 	public void train(DataSet data) {
-		if( data.getData().size() == 0 ){
+		train(data, null);
+	}
+	
+	/**
+	 * Train on a sample of the data, e.g. a bootstrap sample for a random forest
+	 * 
+	 * @param data
+	 * @param sample the indices of the examples in data to train on, which may
+	 * include the same example more than once (null for all the examples)
+	 */
+	void train(DataSet data, int[] sample) {
+		if( data.getData().size() == 0 || (sample != null && sample.length == 0) ){
 			throw new RuntimeException("Tried to train without any data");
 		}
 		
 		featureMap = data.getFeatureMap();
 		featureIndices = data.getAllFeatureIndices();
-		decisionTree = buildTree(data.getData(), new HashSet<Integer>(), depthMax);
+		
+		labels = new double[data.getLabels().size()];
+		int l = 0;
+		for( Double label: data.getLabels() ){
+			labels[l++] = label;
+		}
+		
+		columnFeatures = new int[featureIndices.size()];
+		int maxFeature = -1;
+		int c = 0;
+		for( int featureIndex: featureIndices ){
+			columnFeatures[c++] = featureIndex;
+			maxFeature = Math.max(maxFeature, featureIndex);
+		}
+		Arrays.sort(columnFeatures);
+		
+		featureColumns = new int[maxFeature+1];
+		Arrays.fill(featureColumns, -1);
+		for( c = 0; c < columnFeatures.length; c++ ){
+			featureColumns[columnFeatures[c]] = c;
+		}
+		
+		splitCountsPool = new ConcurrentLinkedQueue<SplitCounts>();
+		
+		trainData = data.getData();
+		exampleLabels = new int[trainData.size()];
+		for( int i = 0; i < exampleLabels.length; i++ ){
+			exampleLabels[i] = getLabelIndex(trainData.get(i).getLabel());
+		}
+		
+		int n = sample == null ? trainData.size() : sample.length;
+		order = new int[n];
+		partitionBuffer = new int[n];
+		for( int i = 0; i < n; i++ ){
+			order[i] = sample == null ? i : sample[i];
+		}
+		
+		BuildTask root;
+		if( splitType == THRESHOLD_SPLITS ){
+			bins = new FeatureBins(data, maxBins);
+			exampleBins = new int[trainData.size()][];
+			for( int i = 0; i < exampleBins.length; i++ ){
+				exampleBins[i] = bins.getBins(trainData.get(i));
+			}
+			histogramPool = new ConcurrentLinkedQueue<Histogram>();
+			
+			root = new BuildTask(0, n, getHistogram(0, n), depthMax, seed);
+		}else{
+			root = new BuildTask(0, n, new BitSet(columnFeatures.length), depthMax, seed);
+		}
+		
+		if( threads > 1 ){
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try{
+				decisionTree = pool.invoke(root);
+			}finally{
+				pool.shutdown();
+			}
+		}else{
+			decisionTree = root.compute();
+		}
+		
+		model = new DecisionTreeModel(decisionTree);
+		
+		// only needed while building
+		splitCountsPool = null;
+		trainData = null;
+		exampleLabels = null;
+		order = null;
+		partitionBuffer = null;
+		bins = null;
+		exampleBins = null;
+		histogramPool = null;
 	}
 	
 	/**
@@ -44,125 +191,555 @@ public class DecisionTreeClassifier implements Classifier{
 		this.depthMax = depthMax;
 	}
 	
+	/**
+	 * Set whether to split on zero vs. non-zero (ZERO_SPLITS, the default) or on
+	 * thresholds (THRESHOLD_SPLITS)
+	 * 
+	 * @param splitType
+	 */
+	public void setSplitType(int splitType){
+		this.splitType = splitType;
+	}
+	
+	/**
+	 * Set the most bins each feature's values are put into for finding threshold
+	 * splits.  More bins give more candidate thresholds.
+	 * 
+	 * @param maxBins
+	 */
+	public void setMaxBins(int maxBins){
+		this.maxBins = maxBins;
+	}
+	
+	/**
+	 * Only consider a random subset of the unused features at each node, as in a
+	 * random forest
+	 * 
+	 * @param featuresPerNode how many features to consider (0 for all of them)
+	 * @param seed seed for choosing the features
+	 */
+	public void setFeaturesPerNode(int featuresPerNode, long seed){
+		this.featuresPerNode = featuresPerNode;
+		this.seed = seed;
+	}
+	
+	/**
+	 * Set the number of threads to build the tree with.  The tree is the same
+	 * whatever the number of threads.
+	 * 
+	 * @param threads
+	 */
+	public void setThreads(int threads){
+		this.threads = threads;
+	}
+	
+	/**
+	 * Set how many examples a node needs for its features to be scored in
+	 * parallel and its subtrees to be built in parallel.  Smaller nodes are built
+	 * sequentially.
+	 * 
+	 * @param parallelThreshold
+	 */
+	public void setParallelThreshold(int parallelThreshold){
+		this.parallelThreshold = parallelThreshold;
+	}
+	
 	/**
 	 * Helper method for building the decision tree.
 	 * 
-	 * @param currentData the data (non-empty) to build the tree over
-	 * @param usedFeatures the features that have been used already
+	 * @param start the start of the (non-empty) range of order to build the tree over
+	 * @param end the end of the range (exclusive)
+	 * @param usedFeatures the columns of the features that have been used
+	 * already.  Restored to the same state before returning.
 	 * @param depthLimit the maximum depth we can build this tree
+	 * @param nodeSeed seed for choosing the features to consider at this node
 	 * @return the learned decision tree
 	 */
-	private DecisionTreeNode buildTree(ArrayList<Example> currentData, HashSet<Integer> usedFeatures, int depthLimit){
-		DataMajority majority = getMajorityLabel(currentData);
+	private DecisionTreeNode buildTree(int start, int end, BitSet usedFeatures, int depthLimit, long nodeSeed){
+		DataMajority majority = getMajorityLabel(start, end);
 				
 		// base cases:
 		// 1. they're all the same label
 		// 2. we're out of features to examine
-		if( majority.majorityCount == currentData.size() ||
-			usedFeatures.size() == featureIndices.size() ||
+		if( majority.majorityCount == end - start ||
+			usedFeatures.cardinality() == columnFeatures.length ||
 			depthLimit == 0){
 			return new DecisionTreeNode(majority.majorityLabel, majority.confidence);
 		}else{
-			// check if all examples have the same features
-					
 			// find the best feature that hasn't been used yet to split on
-			int bestFeature = getBestFeatureIndex(currentData, usedFeatures);
+			int bestFeature = getBestFeatureIndex(start, end, getExcludedFeatures(usedFeatures, nodeSeed));
 			
 			// bestFeature != -1
 			// split on the best feature
-			ArrayList<Example>[] splits = splitData(currentData, bestFeature);
+			int mid = partition(start, end, bestFeature, DecisionTreeNode.LEFT_BRANCH, DecisionTreeNode.LEFT_BRANCH);
+			
+			// with random feature subsets, a split that doesn't separate anything
+			// just uses up depth
+			if( featuresPerNode > 0 && (mid == start || mid == end) ){
+				return new DecisionTreeNode(majority.majorityLabel, majority.confidence);
+			}
 			
 			// create a new decision tree node
 			DecisionTreeNode node = new DecisionTreeNode(bestFeature);
 			
-			HashSet<Integer> featureCopy = (HashSet<Integer>)usedFeatures.clone();
-			featureCopy.add(bestFeature);
+			int bestColumn = featureColumns[bestFeature];
+			usedFeatures.set(bestColumn);
 			
-			// left branch
-			if( splits[0].size() == 0 ){
-				node.setLeft(new DecisionTreeNode(majority.majorityLabel, majority.confidence));
-			}else{
-				node.setLeft(buildTree(splits[0],featureCopy, depthLimit-1));
+			// build the left branch in parallel with the right one if both are big
+			BuildTask leftTask = null;
+			if( isParallel(mid - start) && isParallel(end - mid) ){
+				leftTask = new BuildTask(start, mid, (BitSet)usedFeatures.clone(), depthLimit-1, childSeed(nodeSeed, 0));
+				leftTask.fork();
 			}
 			
 			// right branch
-			if( splits[1].size() == 0 ){
+			if( mid == end ){
 				node.setRight(new DecisionTreeNode(majority.majorityLabel, majority.confidence));
 			}else{
-				node.setRight(buildTree(splits[1], featureCopy, depthLimit-1));
+				node.setRight(buildTree(mid, end, usedFeatures, depthLimit-1, childSeed(nodeSeed, 1)));
+			}
+			
+			// left branch
+			if( leftTask != null ){
+				node.setLeft(leftTask.join());
+			}else if( mid == start ){
+				node.setLeft(new DecisionTreeNode(majority.majorityLabel, majority.confidence));
+			}else{
+				node.setLeft(buildTree(start, mid, usedFeatures, depthLimit-1, childSeed(nodeSeed, 0)));
 			}
 			
+			usedFeatures.clear(bestColumn);
 			return node;
 		}
 	}
 	
 	/**
-	 * Get the best feature to split on based on training error.
+	 * Helper method for building the decision tree with threshold splits.  A
+	 * feature can be split on more than once on a path, with different thresholds.
 	 * 
-	 * @param currentData the current set of examples
-	 * @param usedFeatures which features have been used already and are NOT eligible for splitting on
-	 * @return the index of the best feature
+	 * @param start the start of the (non-empty) range of order to build the tree over
+	 * @param end the end of the range (exclusive)
+	 * @param histogram the label counts of the examples in the range; taken over
+	 * by this method
+	 * @param depthLimit the maximum depth we can build this tree
+	 * @param nodeSeed seed for choosing the features to consider at this node
+	 * @return the learned decision tree
+	 */
+	private DecisionTreeNode buildThresholdTree(int start, int end, Histogram histogram, int depthLimit, long nodeSeed){
+		DataMajority majority = getMajorityLabel(start, end);
+		
+		// base cases:
+		// 1. they're all the same label
+		// 2. no split separates the examples
+		ThresholdSplit split = null;
+		if( majority.majorityCount < end - start && depthLimit > 0 ){
+			split = getBestThreshold(histogram, getExcludedFeatures(NO_FEATURES, nodeSeed));
+		}
+		
+		if( split == null ){
+			histogramPool.add(histogram);
+			return new DecisionTreeNode(majority.majorityLabel, majority.confidence);
+		}
+		
+		int featureIndex = columnFeatures[split.column];
+		double threshold = bins.getUpperBound(split.column, split.bin);
+		int mid = partition(start, end, featureIndex, Double.NEGATIVE_INFINITY, threshold);
+		
+		DecisionTreeNode node = new DecisionTreeNode(featureIndex, threshold);
+		
+		// count the smaller child's histogram and subtract it from ours to get the
+		// bigger child's
+		Histogram leftHistogram;
+		Histogram rightHistogram;
+		if( mid - start <= end - mid ){
+			leftHistogram = getHistogram(start, mid);
+			histogram.subtract(leftHistogram);
+			rightHistogram = histogram;
+		}else{
+			rightHistogram = getHistogram(mid, end);
+			histogram.subtract(rightHistogram);
+			leftHistogram = histogram;
+		}
+		
+		// build the left branch in parallel with the right one if both are big
+		BuildTask leftTask = new BuildTask(start, mid, leftHistogram, depthLimit-1, childSeed(nodeSeed, 0));
+		boolean forked = isParallel(mid - start) && isParallel(end - mid);
+		if( forked ){
+			leftTask.fork();
+		}
+		
+		node.setRight(buildThresholdTree(mid, end, rightHistogram, depthLimit-1, childSeed(nodeSeed, 1)));
+		node.setLeft(forked ? leftTask.join() : leftTask.compute());
+		
+		return node;
+	}
+	
+	/**
+	 * Count the labels of the examples in order[start, end) in each feature bin
+	 * 
+	 * @param start
+	 * @param end
+	 * @return the histogram, with a statistic per label
+	 */
+	private Histogram getHistogram(int start, int end){
+		int numLabels = labels.length;
+		Histogram histogram = histogramPool.poll();
+		if( histogram == null ){
+			histogram = new Histogram(bins.getBinOffsets(), numLabels);
+		}else{
+			histogram.clear();
+		}
+		
+		int[] labelCounts = new int[numLabels];
+		int[] storedCounts = new int[columnFeatures.length*numLabels];
+		
+		for( int p = start; p < end; p++ ){
+			int i = order[p];
+			int l = exampleLabels[i];
+			labelCounts[l]++;
+			
+			int[] indices = trainData.get(i).getSparseIndices();
+			int[] featureBins = exampleBins[i];
+			for( int k = 0; k < indices.length; k++ ){
+				int column = featureColumns[indices[k]];
+				histogram.add(column, featureBins[k], l, 1);
+				storedCounts[column*numLabels + l]++;
+			}
+		}
+		
+		// the examples without a feature have value 0
+		for( int column = 0; column < columnFeatures.length; column++ ){
+			int zeroBin = bins.getBin(column, 0.0);
+			for( int l = 0; l < numLabels; l++ ){
+				int missing = labelCounts[l] - storedCounts[column*numLabels + l];
+				if( missing > 0 ){
+					histogram.add(column, zeroBin, l, missing);
+				}
+			}
+		}
+		
+		return histogram;
+	}
+	
+	/**
+	 * Get the best threshold split based on training error, i.e. the one where
+	 * the majority labels on the two sides of the split get the most examples
+	 * right.  Ties go to the smaller feature index, then the smaller threshold.
+	 * Only splits with examples on both sides count.
+	 * 
+	 * @param histogram the label counts of the current examples
+	 * @param excludedFeatures the columns of the features that are NOT eligible for splitting on
+	 * @return the best split, or null if there isn't one
+	 */
+	private ThresholdSplit getBestThreshold(Histogram histogram, BitSet excludedFeatures){
+		int numLabels = labels.length;
+		int[] leftCounts = new int[numLabels];
+		ThresholdSplit best = null;
+		
+		// every column's bins hold all the examples
+		int[] labelCounts = new int[numLabels];
+		int total = 0;
+		if( columnFeatures.length > 0 ){
+			for( int bin = 0; bin < histogram.getNumBins(0); bin++ ){
+				for( int l = 0; l < numLabels; l++ ){
+					labelCounts[l] += (int)histogram.get(0, bin, l);
+				}
+			}
+			for( int count: labelCounts ){
+				total += count;
+			}
+		}
+		
+		for( int column = 0; column < columnFeatures.length; column++ ){
+			int numBins = histogram.getNumBins(column);
+			if( excludedFeatures.get(column) || numBins < 2 ){
+				continue;
+			}
+			
+			Arrays.fill(leftCounts, 0);
+			int leftTotal = 0;
+			for( int bin = 0; bin < numBins - 1; bin++ ){
+				for( int l = 0; l < numLabels; l++ ){
+					int count = (int)histogram.get(column, bin, l);
+					leftCounts[l] += count;
+					leftTotal += count;
+				}
+				
+				if( leftTotal == total ){
+					break;
+				}else if( leftTotal == 0 ){
+					continue;
+				}
+				
+				int leftCorrect = 0;
+				int rightCorrect = 0;
+				for( int l = 0; l < numLabels; l++ ){
+					leftCorrect = Math.max(leftCorrect, leftCounts[l]);
+					rightCorrect = Math.max(rightCorrect, labelCounts[l] - leftCounts[l]);
+				}
+				
+				int correct = leftCorrect + rightCorrect;
+				if( best == null || correct > best.correct ){
+					best = new ThresholdSplit(column, bin, correct);
+				}
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Get the features that can't be split on at a node: the used ones, and if
+	 * we're only considering some of the features, the ones that weren't chosen.
+	 * The choice only depends on the node's seed, so it doesn't matter what order
+	 * the nodes are built in.
+	 * 
+	 * @param usedFeatures the columns of the features that have been used
+	 * @param nodeSeed
+	 * @return the columns of the features that can't be split on
 	 */
-	private int getBestFeatureIndex(ArrayList<Example> currentData, HashSet<Integer> usedFeatures){
-		int bestFeature = -1;
-		double bestFeatureScore = 1.0; // lower is better for now
-		
-		for( int featureIndex: featureIndices){
-			if( !usedFeatures.contains(featureIndex) ){
-				double error = averageTrainingError(currentData, featureIndex);
-									
-				if( error < bestFeatureScore ||
-					(error == bestFeatureScore && featureIndex < bestFeature )){
-					bestFeatureScore = error;
-					bestFeature = featureIndex;
+	private BitSet getExcludedFeatures(BitSet usedFeatures, long nodeSeed){
+		int numUnused = columnFeatures.length - usedFeatures.cardinality();
+		if( featuresPerNode <= 0 || featuresPerNode >= numUnused ){
+			return usedFeatures;
+		}
+		
+		// reservoir sample featuresPerNode of the unused columns
+		Random random = new Random(nodeSeed);
+		int[] chosen = new int[featuresPerNode];
+		int seen = 0;
+		for( int column = usedFeatures.nextClearBit(0); column < columnFeatures.length;
+				column = usedFeatures.nextClearBit(column+1) ){
+			if( seen < featuresPerNode ){
+				chosen[seen] = column;
+			}else{
+				int r = random.nextInt(seen+1);
+				if( r < featuresPerNode ){
+					chosen[r] = column;
 				}
 			}
+			seen++;
+		}
+		
+		BitSet excluded = new BitSet(columnFeatures.length);
+		excluded.set(0, columnFeatures.length);
+		for( int column: chosen ){
+			excluded.clear(column);
+		}
+		return excluded;
+	}
+	
+	/**
+	 * @return the seed for the left (0) or right (1) child of a node
+	 */
+	private static long childSeed(long nodeSeed, int side){
+		long z = nodeSeed*31 + side + 1;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * Whether a node with this many examples should be worked on in parallel
+	 */
+	private boolean isParallel(int numExamples){
+		return threads > 1 && numExamples >= parallelThreshold;
+	}
+	
+	/**
+	 * Get the best feature to split on based on training error, i.e. the one
+	 * where the majority labels on the two sides of the split get the most
+	 * examples right.  Ties go to the smaller feature index.
+	 * 
+	 * Rather than splitting the data for every feature, this makes one pass over
+	 * the non-zero features of the examples, counting for each feature how many
+	 * examples of each label are non-zero (the right side).  The left side counts
+	 * are the label counts minus those.  Features that are zero for every example
+	 * put everything on the left, which gets as many right as not splitting.
+	 * 
+	 * For big nodes, the features are split into ranges of columns that are
+	 * counted and scored in parallel.
+	 * 
+	 * @param start the start of the range of order with the current examples
+	 * @param end the end of the range (exclusive)
+	 * @param excludedFeatures the columns of the features that are NOT eligible for splitting on
+	 * @return the index of the best feature
+	 */
+	private int getBestFeatureIndex(int start, int end, BitSet excludedFeatures){
+		int[] labelCounts = new int[labels.length];
+		for( int p = start; p < end; p++ ){
+			labelCounts[exampleLabels[order[p]]]++;
+		}
+		
+		int unsplitCorrect = 0;
+		for( int count: labelCounts ){
+			unsplitCorrect = Math.max(unsplitCorrect, count);
+		}
+		
+		SplitCounts counts = splitCountsPool.poll();
+		if( counts == null ){
+			counts = new SplitCounts();
+		}
+		
+		FeatureScore best;
+		if( isParallel(end - start) ){
+			int numRanges = Math.min(threads, columnFeatures.length);
+			ArrayList<ScoreTask> tasks = new ArrayList<ScoreTask>();
+			for( int r = 0; r < numRanges; r++ ){
+				tasks.add(new ScoreTask(start, end, excludedFeatures, labelCounts, counts,
+						(int)((long)columnFeatures.length*r/numRanges), (int)((long)columnFeatures.length*(r+1)/numRanges)));
+			}
+			ForkJoinTask.invokeAll(tasks);
+			
+			best = tasks.get(0).getRawResult();
+			for( int r = 1; r < numRanges; r++ ){
+				best = best.combine(tasks.get(r).getRawResult());
+			}
+		}else{
+			best = scoreFeatures(start, end, excludedFeatures, labelCounts, counts, 0, columnFeatures.length);
+		}
+		
+		splitCountsPool.add(counts);
+		
+		// the smallest feature that is zero everywhere ties with the best
+		// feature if the best doesn't beat not splitting
+		int bestFeature = best.feature;
+		if( best.correct <= unsplitCorrect && best.firstUntouched != -1 ){
+			if( bestFeature == -1 || best.firstUntouched < bestFeature ){
+				bestFeature = best.firstUntouched;
+			}
 		}
 		
 		return bestFeature;
 	}
 	
 	/**
-	 * Get the average training error on this data set if we split on featureIndex
+	 * Count and score the features in columns [columnStart, columnEnd).
 	 * 
-	 * @param data the current data
-	 * @param featureIndex the feature we're considering splitting on
-	 * @return the error
+	 * @param start the start of the range of order with the current examples
+	 * @param end the end of the range (exclusive)
+	 * @param excludedFeatures the columns of the features that can't be split on
+	 * @param labelCounts the number of current examples with each label
+	 * @param counts the count table to use, which is shared with the other
+	 * column ranges; left as it was found for these columns
+	 * @param columnStart
+	 * @param columnEnd
+	 * @return the best of these features
 	 */
-	private double averageTrainingError(ArrayList<Example> data, int featureIndex){		
-		ArrayList<Example>[] splits = splitData(data, featureIndex);
+	private FeatureScore scoreFeatures(int start, int end, BitSet excludedFeatures, int[] labelCounts,
+			SplitCounts counts, int columnStart, int columnEnd){
+		int numLabels = labels.length;
+		int[] splitCounts = counts.counts;
+		boolean[] touched = counts.touched;
+		int[] touchedColumns = new int[columnEnd - columnStart];
+		int numTouched = 0;
+		boolean allColumns = columnStart == 0 && columnEnd == columnFeatures.length;
+		
+		for( int p = start; p < end; p++ ){
+			Example e = trainData.get(order[p]);
+			int l = exampleLabels[order[p]];
+			
+			int[] indices = e.getSparseIndices();
+			double[] values = e.getSparseValues();
+			for( int i = 0; i < indices.length; i++ ){
+				int column = featureColumns[indices[i]];
+				
+				if( values[i] != DecisionTreeNode.LEFT_BRANCH &&
+					(allColumns || (column >= columnStart && column < columnEnd)) ){
+					if( !touched[column] ){
+						touched[column] = true;
+						touchedColumns[numTouched++] = column;
+					}
+					splitCounts[column*numLabels + l]++;
+				}
+			}
+		}
+		
+		FeatureScore best = new FeatureScore();
+		
+		for( int t = 0; t < numTouched; t++ ){
+			int column = touchedColumns[t];
+			int featureIndex = columnFeatures[column];
+			
+			if( !excludedFeatures.get(column) ){
+				int leftCorrect = 0;
+				int rightCorrect = 0;
+				for( int l = 0; l < numLabels; l++ ){
+					int rightCount = splitCounts[column*numLabels + l];
+					rightCorrect = Math.max(rightCorrect, rightCount);
+					leftCorrect = Math.max(leftCorrect, labelCounts[l] - rightCount);
+				}
+				
+				int correct = leftCorrect + rightCorrect;
+				if( correct > best.correct ||
+					(correct == best.correct && featureIndex < best.feature) ){
+					best.correct = correct;
+					best.feature = featureIndex;
+				}
+			}
+		}
+		
+		for( int column = columnStart; column < columnEnd; column++ ){
+			if( !touched[column] && !excludedFeatures.get(column) ){
+				best.firstUntouched = columnFeatures[column];
+				break;
+			}
+		}
+		
+		// reset the counts for the next node
+		for( int t = 0; t < numTouched; t++ ){
+			int column = touchedColumns[t];
+			touched[column] = false;
+			Arrays.fill(splitCounts, column*numLabels, (column+1)*numLabels, 0);
+		}
 		
-		int leftCount = splits[0].size() > 0 ? getMajorityLabel(splits[0]).majorityCount : 0;
-		int rightCount = splits[1].size() > 0 ? getMajorityLabel(splits[1]).majorityCount : 0;
+		return best;
+	}
+	
+	/**
+	 * @param label
+	 * @return the position of label in labels
+	 */
+	private int getLabelIndex(double label){
+		for( int l = 0; l < labels.length; l++ ){
+			if( labels[l] == label ){
+				return l;
+			}
+		}
 		
-		double accuracy = (leftCount+rightCount)/(double)data.size();
-		return 1-accuracy;
+		throw new RuntimeException("Unknown label: " + label);
 	}
 	
 	/**
-	 * Split the data based on featureIndex
+	 * Split the examples in order[start, end) based on featureIndex, keeping the
+	 * examples on each side in the same relative order.
 	 * 
-	 * @param data the data to be split
+	 * @param start the start of the range to split
+	 * @param end the end of the range (exclusive)
 	 * @param featureIndex the feature to split on
-	 * @return the split of the data.  Entry 0 is the left branch data and entry 1 the right branch data.
+	 * @param lower the smallest value that goes left
+	 * @param upper the largest value that goes left
+	 * @return where the right branch examples start.  The left branch examples
+	 * are order[start, mid) and the right order[mid, end).
 	 */
-	private ArrayList<Example>[] splitData(ArrayList<Example> data, int featureIndex){
-		// split the data based on this feature
-		ArrayList<Example>[] splits = new ArrayList[2];
-		splits[0] = new ArrayList<Example>();
-		splits[1] = new ArrayList<Example>();
-				
-		for( Example d: data){
-			double value = d.getFeature(featureIndex);
+	private int partition(int start, int end, int featureIndex, double lower, double upper){
+		int left = start;
+		int right = start;
+		
+		for( int p = start; p < end; p++ ){
+			int i = order[p];
+			double value = trainData.get(i).getFeature(featureIndex);
 			
-			if( value == DecisionTreeNode.LEFT_BRANCH ){
-				splits[0].add(d);
+			if( value >= lower && value <= upper ){
+				order[left++] = i;
 			}else{
-				splits[1].add(d);
+				partitionBuffer[right++] = i;
 			}
 		}
 		
-		return splits;
+		// nodes being built at the same time have disjoint ranges of the buffer
+		System.arraycopy(partitionBuffer, start, order, left, right - start);
+		return left;
 	}
 	
 	public String toString(){
@@ -172,14 +749,28 @@ public class DecisionTreeClassifier implements Classifier{
 	/**
 	 * given the data, calculate the majority label and how many times it occurs in the data
 	 * 
-	 * @param data
+	 * @param start the start of the range of order with the data
+	 * @param end the end of the range (exclusive)
 	 * @return majority information from the data
 	 */
-	private DataMajority getMajorityLabel(ArrayList<Example> data){
-		HashMapCounter<Double> counter = new HashMapCounter<Double>();
+	private DataMajority getMajorityLabel(int start, int end){
+		int[] counts = new int[labels.length];
+		int[] firstSeen = new int[labels.length];
+		int numSeen = 0;
+		
+		for( int p = start; p < end; p++ ){
+			int l = exampleLabels[order[p]];
+			
+			if( counts[l]++ == 0 ){
+				firstSeen[numSeen++] = l;
+			}
+		}
 		
-		for( Example d: data ){
-			counter.increment(d.getLabel());
+		// ties go to whichever label the counter iterates over first, which
+		// depends on the order the labels were added
+		HashMapCounter<Double> counter = new HashMapCounter<Double>();
+		for( int s = 0; s < numSeen; s++ ){
+			counter.increment(labels[firstSeen[s]], counts[firstSeen[s]]);
 		}
 		
 		double maxLabel = 0.0;
@@ -192,42 +783,164 @@ public class DecisionTreeClassifier implements Classifier{
 			}
 		}
 		
-		return new DataMajority(maxLabel, maxCount, ((double)maxCount)/data.size());
+		return new DataMajority(maxLabel, maxCount, ((double)maxCount)/(end - start));
 	}
 		
 	@Override
 	public double classify(Example example) {
-		return findLeaf(example).prediction();
+		return model.classify(example);
 	}
 	
 	@Override
 	public double confidence(Example example) {
-		return findLeaf(example).confidence();
+		return model.confidence(example);
 	}
 	
 	/**
-	 * Figure out which leaf this example falls into
+	 * Classify all the examples, a block at a time (see DecisionTreeModel)
 	 * 
-	 * @param example
-	 * @return the leaf node
+	 * @param examples
+	 * @return {predicted labels, confidences}, indexed like examples
+	 */
+	@Override
+	public double[][] classify(List<Example> examples){
+		return model.classify(examples);
+	}
+	
+	@Override
+	public DecisionTreeModel getModel(){
+		return model;
+	}
+		
+	/**
+	 * Builds the subtree over a range of the examples
 	 */
-	private DecisionTreeNode findLeaf(Example example){
-		DecisionTreeNode current = decisionTree;
+	private class BuildTask extends RecursiveTask<DecisionTreeNode>{
+		private static final long serialVersionUID = 1L;
 		
-		while( !current.isLeaf() ){
-			int feature = current.getFeatureIndex();
-			
-			if( example.getFeature(feature) == DecisionTreeNode.LEFT_BRANCH ){
-				// go left
-				current = current.getLeft();
-			}else{
-				current = current.getRight();
+		private int start;
+		private int end;
+		private BitSet usedFeatures;
+		private Histogram histogram;
+		private int depthLimit;
+		private long nodeSeed;
+		
+		public BuildTask(int start, int end, BitSet usedFeatures, int depthLimit, long nodeSeed){
+			this.start = start;
+			this.end = end;
+			this.usedFeatures = usedFeatures;
+			this.depthLimit = depthLimit;
+			this.nodeSeed = nodeSeed;
+		}
+		
+		/**
+		 * Build a subtree with threshold splits
+		 */
+		public BuildTask(int start, int end, Histogram histogram, int depthLimit, long nodeSeed){
+			this.start = start;
+			this.end = end;
+			this.histogram = histogram;
+			this.depthLimit = depthLimit;
+			this.nodeSeed = nodeSeed;
+		}
+		
+		@Override
+		protected DecisionTreeNode compute(){
+			if( histogram != null ){
+				return buildThresholdTree(start, end, histogram, depthLimit, nodeSeed);
 			}
+			return buildTree(start, end, usedFeatures, depthLimit, nodeSeed);
+		}
+	}
+	
+	/**
+	 * Scores a range of the feature columns
+	 */
+	private class ScoreTask extends RecursiveTask<FeatureScore>{
+		private static final long serialVersionUID = 1L;
+		
+		private int start;
+		private int end;
+		private BitSet excludedFeatures;
+		private int[] labelCounts;
+		private SplitCounts counts;
+		private int columnStart;
+		private int columnEnd;
+		
+		public ScoreTask(int start, int end, BitSet excludedFeatures, int[] labelCounts, SplitCounts counts,
+				int columnStart, int columnEnd){
+			this.start = start;
+			this.end = end;
+			this.excludedFeatures = excludedFeatures;
+			this.labelCounts = labelCounts;
+			this.counts = counts;
+			this.columnStart = columnStart;
+			this.columnEnd = columnEnd;
 		}
 		
-		return current;
+		@Override
+		protected FeatureScore compute(){
+			return scoreFeatures(start, end, excludedFeatures, labelCounts, counts, columnStart, columnEnd);
+		}
+	}
+	
+	/**
+	 * A (feature, label) count table for scoring the splits at one node:
+	 * counts[column*labels.length + l] is the number of examples at the node with
+	 * labels[l] that are non-zero for the feature.  Only the touched columns are
+	 * non-zero while it's in use, and it's all zero when it isn't.
+	 */
+	private class SplitCounts{
+		public int[] counts = new int[columnFeatures.length*labels.length];
+		public boolean[] touched = new boolean[columnFeatures.length];
 	}
+	
+	/**
+	 * A threshold split: the examples in bins [0, bin] of column go left
+	 */
+	private static class ThresholdSplit{
+		public int column;
+		public int bin;
+		public int correct;
+		
+		public ThresholdSplit(int column, int bin, int correct){
+			this.column = column;
+			this.bin = bin;
+			this.correct = correct;
+		}
+	}
+	
+	/**
+	 * The best feature in a range of columns
+	 */
+	private static class FeatureScore{
+		// the best feature that is non-zero for some example and how many
+		// examples splitting on it gets right
+		public int feature = -1;
+		public int correct = -1;
+		
+		// the smallest unused feature that is zero for every example
+		public int firstUntouched = -1;
 		
+		/**
+		 * @return the best of the two, where other covers later columns
+		 */
+		public FeatureScore combine(FeatureScore other){
+			FeatureScore result = new FeatureScore();
+			
+			if( other.correct > correct || (other.correct == correct && other.feature < feature) ){
+				result.feature = other.feature;
+				result.correct = other.correct;
+			}else{
+				result.feature = feature;
+				result.correct = correct;
+			}
+			
+			result.firstUntouched = firstUntouched != -1 ? firstUntouched : other.firstUntouched;
+			return result;
+		}
+	}
+	
 	/**
 	 * A container class to allow us to return multiple values when calculting
 	 * the majority label from a collection of data.
@@ -0,0 +1,186 @@
+package ml.classifiers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ml.data.Example;
+
+/**
+ * A trained decision tree flattened into parallel arrays for classifying.  The
+ * nodes are numbered in depth first order, so a left child is right after its
+ * parent and the top of the tree is at the start of the arrays.
+ */
+public final class DecisionTreeModel implements Model {
+	// number of examples that go down the tree together in batch classification
+	private static final int BATCH_BLOCK = 64;
+
+	/**
+	 * the tree's nodes, with the root at 0.  nodeFeatures is the feature index
+	 * an internal node splits on and -1 for leaves.  An example goes left at a
+	 * node if its value for the feature is between leftLower and leftUpper
+	 * (inclusive).
+	 */
+	private final int[] nodeFeatures;
+	private final double[] leftLower;
+	private final double[] leftUpper;
+	private final int[] leftChildren;
+	private final int[] rightChildren;
+	private final double[] predictions;
+	private final double[] confidences;
+
+	/**
+	 * Copy the tree into the node arrays
+	 *
+	 * @param tree the root of the tree
+	 */
+	public DecisionTreeModel(DecisionTreeNode tree){
+		int numNodes = countNodes(tree);
+		nodeFeatures = new int[numNodes];
+		leftLower = new double[numNodes];
+		leftUpper = new double[numNodes];
+		leftChildren = new int[numNodes];
+		rightChildren = new int[numNodes];
+		predictions = new double[numNodes];
+		confidences = new double[numNodes];
+
+		flatten(tree, 0);
+	}
+
+	/**
+	 * @param node
+	 * @param position where to put node
+	 * @return the next free position after node's subtree
+	 */
+	private int flatten(DecisionTreeNode node, int position){
+		if( node.isLeaf() ){
+			nodeFeatures[position] = -1;
+			predictions[position] = node.prediction();
+			confidences[position] = node.confidence();
+			return position + 1;
+		}
+
+		nodeFeatures[position] = node.getFeatureIndex();
+		if( node.isThresholdSplit() ){
+			leftLower[position] = Double.NEGATIVE_INFINITY;
+			leftUpper[position] = node.getThreshold();
+		}else{
+			leftLower[position] = DecisionTreeNode.LEFT_BRANCH;
+			leftUpper[position] = DecisionTreeNode.LEFT_BRANCH;
+		}
+		leftChildren[position] = position + 1;
+		int next = flatten(node.getLeft(), position + 1);
+		rightChildren[position] = next;
+		return flatten(node.getRight(), next);
+	}
+
+	private static int countNodes(DecisionTreeNode node){
+		return node.isLeaf() ? 1 : 1 + countNodes(node.getLeft()) + countNodes(node.getRight());
+	}
+
+	@Override
+	public double classify(Example example) {
+		return predictions[findLeaf(example.getSparseIndices(), example.getSparseValues())];
+	}
+
+	/**
+	 * The confidence of the leaf the example falls into
+	 */
+	@Override
+	public double confidence(Example example) {
+		return confidences[findLeaf(example.getSparseIndices(), example.getSparseValues())];
+	}
+
+	/**
+	 * Figure out which leaf this example falls into
+	 *
+	 * @param indices the example's sorted feature indices
+	 * @param values the example's feature values
+	 * @return the position of the leaf in the node arrays
+	 */
+	private int findLeaf(int[] indices, double[] values){
+		int node = 0;
+		int feature;
+
+		while( (feature = nodeFeatures[node]) >= 0 ){
+			node = goesLeft(node, getValue(indices, values, feature)) ? leftChildren[node] : rightChildren[node];
+		}
+
+		return node;
+	}
+
+	/**
+	 * @return whether an example with this value goes down the left branch of node
+	 */
+	private boolean goesLeft(int node, double value){
+		return value >= leftLower[node] && value <= leftUpper[node];
+	}
+
+	/**
+	 * @return the value of feature in the sparse example (0 if it isn't there)
+	 */
+	private static double getValue(int[] indices, double[] values, int feature){
+		int i = Arrays.binarySearch(indices, feature);
+		return i >= 0 ? values[i] : 0.0;
+	}
+
+	/**
+	 * Classify all the examples.  The examples go down the tree a block at a
+	 * time, with every example in the block taking one step before any takes the
+	 * next, so the top of the tree stays in cache for the whole block.
+	 *
+	 * @param examples
+	 * @return {predicted labels, confidences}, indexed like examples
+	 */
+	@Override
+	public double[][] classify(List<Example> examples){
+		int n = examples.size();
+		double[][] results = new double[2][n];
+
+		int[][] blockIndices = new int[BATCH_BLOCK][];
+		double[][] blockValues = new double[BATCH_BLOCK][];
+		int[] nodes = new int[BATCH_BLOCK];
+
+		for( int blockStart = 0; blockStart < n; blockStart += BATCH_BLOCK ){
+			int blockSize = Math.min(BATCH_BLOCK, n - blockStart);
+			for( int b = 0; b < blockSize; b++ ){
+				Example e = examples.get(blockStart + b);
+				blockIndices[b] = e.getSparseIndices();
+				blockValues[b] = e.getSparseValues();
+				nodes[b] = 0;
+			}
+
+			boolean moved = true;
+			while( moved ){
+				moved = false;
+				for( int b = 0; b < blockSize; b++ ){
+					int feature = nodeFeatures[nodes[b]];
+					if( feature >= 0 ){
+						nodes[b] = goesLeft(nodes[b], getValue(blockIndices[b], blockValues[b], feature)) ?
+								leftChildren[nodes[b]] : rightChildren[nodes[b]];
+						moved = true;
+					}
+				}
+			}
+
+			for( int b = 0; b < blockSize; b++ ){
+				results[0][blockStart + b] = predictions[nodes[b]];
+				results[1][blockStart + b] = confidences[nodes[b]];
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int getNumNodes(){
+		return nodeFeatures.length;
+	}
+
+	@Override
+	public long memoryFootprint(){
+		int n = nodeFeatures.length;
+		return OBJECT_BYTES + 3*Model.arrayBytes(n, 4) + 4*Model.arrayBytes(n, 8);
+	}
+}
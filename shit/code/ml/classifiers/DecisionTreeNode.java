@@ -26,6 +26,10 @@ public class DecisionTreeNode {
 	// only applicable if it's an internal node
 	private int featureIndex;  // the index of the feature we're checking
 	
+	// for threshold splits, values <= threshold go left (NaN if the split is
+	// zero vs. non-zero)
+	private double threshold = Double.NaN;
+	
 	private DecisionTreeNode left;
 	private DecisionTreeNode right;
 	
@@ -49,6 +53,18 @@ public class DecisionTreeNode {
 		leaf = false;
 		this.featureIndex = featureIndex;
 	}
+	
+	/**
+	 * Create an internal node that sends the examples with featureIndex <= threshold
+	 * down the left branch and the rest down the right
+	 * 
+	 * @param featureIndex
+	 * @param threshold
+	 */
+	public DecisionTreeNode(int featureIndex, double threshold){
+		this(featureIndex);
+		this.threshold = threshold;
+	}
 
 	/**
 	 * @return whether or not this node is a leaf
@@ -132,6 +148,32 @@ public class DecisionTreeNode {
 		return featureIndex;
 	}
 	
+	/**
+	 * Whether this internal node splits on a threshold rather than zero vs. non-zero
+	 * 
+	 * @return
+	 */
+	public boolean isThresholdSplit(){
+		if( leaf ){
+			throw new RuntimeException("isThresholdSplit can only be called on internal nodes");
+		}
+		
+		return !Double.isNaN(threshold);
+	}
+	
+	/**
+	 * Get the threshold of an internal node with a threshold split
+	 * 
+	 * @return
+	 */
+	public double getThreshold(){
+		if( leaf || Double.isNaN(threshold) ){
+			throw new RuntimeException("getThreshold can only be called on internal nodes with threshold splits");
+		}
+		
+		return threshold;
+	}
+	
 	/**
 	 * Get a formatted string representation of this DecisionTreeNode and all nodes below it.
 	 * This basic version only prints out feature indices.
@@ -170,6 +212,10 @@ public class DecisionTreeNode {
 				featureString = headers.get(featureIndex);
 			}
 			
+			if( !Double.isNaN(threshold) ){
+				featureString += " <= " + threshold;
+			}
+			
 			return "(" + featureString + "\n" + 
 		            spaces + left.treeStringHelper(spaces + "  ", headers) + "\n" +
 					spaces + right.treeStringHelper(spaces + "  ", headers) + ")";
@@ -0,0 +1,766 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import ml.data.DataSet;
+import ml.data.Example;
+import ml.data.FeatureBins;
+import ml.utils.Histogram;
+
+/**
+ * Gradient boosted decision trees. Each round fits a regression tree to the
+ * gradients of the log loss of the current scores and adds a fraction
+ * (the learning rate) of it to the scores. With two labels there is one score
+ * (logistic loss); with more there is one score and one tree per round for
+ * each label (softmax).
+ *
+ * The features are put into quantile bins once before training (see
+ * FeatureBins), and the trees split on thresholds between bins. Each leaf
+ * keeps a histogram of the gradient and hessian sums in every bin, so its best
+ * split is found with one pass over the bins. Only the smaller child of a split
+ * has its histogram counted from its examples, in parallel over chunks of the
+ * examples; the bigger child's is the parent's minus the smaller one's.
+ *
+ * The trees are grown leaf-wise: the leaf whose best split reduces the loss
+ * the most is split next, until the tree has the maximum number of leaves or
+ * no leaf can be split. The trees are stored as flat arrays for classifying.
+ */
+public class GradientBoostedTreesClassifier implements Classifier {
+	// the statistics in the histograms
+	private static final int GRADIENT = 0;
+	private static final int HESSIAN = 1;
+	private static final int COUNT = 2;
+
+	// histograms are counted in chunks of this many examples, which are
+	// counted in parallel and added together in order
+	private static final int CHUNK_SIZE = 4096;
+
+	private int iterations = 100;
+	private double learningRate = 0.1;
+	private int depthLimit = 6;
+	private int maxLeaves = 31;
+	private int minExamplesPerLeaf = 10;
+	private double l2 = 1.0;
+	private int maxBins = 64;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	// the labels in the training data, in increasing order
+	private double[] labels;
+
+	// number of scores per example: 1 with two labels, otherwise one per label
+	private int numOutputs;
+
+	// the scores before any trees
+	private double[] baseScores;
+
+	// the trained trees
+	private GradientBoostedTreesModel model;
+
+	/**
+	 * the trees being built, flattened into parallel arrays (see
+	 * GradientBoostedTreesModel)
+	 */
+	private int[] treeRoots;
+	private int[] nodeFeatures;
+	private double[] thresholds;
+	private int[] leftChildren;
+	private int[] rightChildren;
+	private double[] leafValues;
+	private int numNodes;
+
+	// only needed while training: the feature bins, each training example's
+	// stored feature indices and their bins, the bin of value 0 for each
+	// column, the current gradients and hessians, and the example indices,
+	// which are partitioned in place so each leaf's examples are a range
+	private FeatureBins bins;
+	private int[][] exampleIndices;
+	private int[][] exampleBins;
+	private int[] zeroBins;
+	private double[] gradients;
+	private double[] hessians;
+	private int[] order;
+	private int[] partitionBuffer;
+	private ForkJoinPool pool;
+
+	/**
+	 * Set the number of boosting rounds
+	 *
+	 * @param iterations
+	 */
+	public void setIterations(int iterations) {
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Set how much of each tree's output is added to the scores
+	 *
+	 * @param learningRate
+	 */
+	public void setLearningRate(double learningRate) {
+		this.learningRate = learningRate;
+	}
+
+	/**
+	 * Set the maximum depth of each tree
+	 *
+	 * @param depthLimit
+	 */
+	public void setDepthLimit(int depthLimit) {
+		this.depthLimit = depthLimit;
+	}
+
+	/**
+	 * Set the maximum number of leaves in each tree
+	 *
+	 * @param maxLeaves
+	 */
+	public void setMaxLeaves(int maxLeaves) {
+		this.maxLeaves = maxLeaves;
+	}
+
+	/**
+	 * Set the fewest training examples a leaf can have
+	 *
+	 * @param minExamplesPerLeaf
+	 */
+	public void setMinExamplesPerLeaf(int minExamplesPerLeaf) {
+		this.minExamplesPerLeaf = minExamplesPerLeaf;
+	}
+
+	/**
+	 * Set the L2 regularization of the leaf values
+	 *
+	 * @param l2
+	 */
+	public void setL2Regularization(double l2) {
+		this.l2 = l2;
+	}
+
+	/**
+	 * Set the most bins each feature's values are put into
+	 *
+	 * @param maxBins
+	 */
+	public void setMaxBins(int maxBins) {
+		this.maxBins = maxBins;
+	}
+
+	/**
+	 * Set the number of threads to count the histograms with. The model is the
+	 * same whatever the number of threads.
+	 *
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	@Override
+	public void train(DataSet data) {
+		ArrayList<Example> examples = data.getData();
+		int n = examples.size();
+		if (n == 0) {
+			throw new RuntimeException("Tried to train without any data");
+		}
+		if (maxLeaves < 1) {
+			throw new RuntimeException("Trees need at least one leaf: " + maxLeaves);
+		}
+
+		labels = new double[data.getLabels().size()];
+		int l = 0;
+		for (Double label : data.getLabels()) {
+			labels[l++] = label;
+		}
+		Arrays.sort(labels);
+		numOutputs = labels.length <= 2 ? 1 : labels.length;
+
+		bins = new FeatureBins(data, maxBins);
+		exampleIndices = new int[n][];
+		exampleBins = new int[n][];
+		int[] exampleLabels = new int[n];
+		int[] labelCounts = new int[labels.length];
+		for (int i = 0; i < n; i++) {
+			Example e = examples.get(i);
+			exampleIndices[i] = e.getSparseIndices();
+			exampleBins[i] = bins.getBins(e);
+			exampleLabels[i] = Arrays.binarySearch(labels, e.getLabel());
+			labelCounts[exampleLabels[i]]++;
+		}
+
+		zeroBins = new int[bins.getNumColumns()];
+		for (int column = 0; column < zeroBins.length; column++) {
+			zeroBins[column] = bins.getBin(column, 0.0);
+		}
+
+		// start from the log odds (or log probabilities) of the labels
+		baseScores = new double[numOutputs];
+		if (numOutputs == 1) {
+			double p = clamp(labels.length == 2 ? labelCounts[1] / (double) n : 0.0);
+			baseScores[0] = Math.log(p / (1 - p));
+		} else {
+			for (l = 0; l < numOutputs; l++) {
+				baseScores[l] = Math.log(clamp(labelCounts[l] / (double) n));
+			}
+		}
+
+		double[] scores = new double[n * numOutputs];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(baseScores, 0, scores, i * numOutputs, numOutputs);
+		}
+
+		int numTrees = iterations * numOutputs;
+		int maxNodes = numTrees * (2 * maxLeaves - 1);
+		treeRoots = new int[numTrees];
+		nodeFeatures = new int[maxNodes];
+		thresholds = new double[maxNodes];
+		leftChildren = new int[maxNodes];
+		rightChildren = new int[maxNodes];
+		leafValues = new double[maxNodes];
+		numNodes = 0;
+
+		gradients = new double[n];
+		hessians = new double[n];
+		order = new int[n];
+		partitionBuffer = new int[n];
+		double[] probabilities = new double[n * numOutputs];
+		pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+		try {
+			for (int it = 0; it < iterations; it++) {
+				computeProbabilities(scores, probabilities);
+
+				for (int k = 0; k < numOutputs; k++) {
+					for (int i = 0; i < n; i++) {
+						double p = probabilities[i * numOutputs + k];
+						double y = numOutputs == 1 ? (labels.length == 2 && exampleLabels[i] == 1 ? 1 : 0)
+								: (exampleLabels[i] == k ? 1 : 0);
+						gradients[i] = p - y;
+						hessians[i] = Math.max(p * (1 - p), 1e-16);
+					}
+
+					treeRoots[it * numOutputs + k] = buildTree(scores, k);
+				}
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+
+		// only keep the nodes that were used
+		model = new GradientBoostedTreesModel(labels, numOutputs, baseScores, treeRoots,
+				Arrays.copyOf(nodeFeatures, numNodes), Arrays.copyOf(thresholds, numNodes),
+				Arrays.copyOf(leftChildren, numNodes), Arrays.copyOf(rightChildren, numNodes),
+				Arrays.copyOf(leafValues, numNodes));
+
+		treeRoots = null;
+		nodeFeatures = null;
+		thresholds = null;
+		leftChildren = null;
+		rightChildren = null;
+		leafValues = null;
+		bins = null;
+		exampleIndices = null;
+		exampleBins = null;
+		zeroBins = null;
+		gradients = null;
+		hessians = null;
+		order = null;
+		partitionBuffer = null;
+		pool = null;
+	}
+
+	/**
+	 * Fit one tree to the current gradients and add it to the scores
+	 *
+	 * @param scores the training examples' scores
+	 * @param output which of the scores the tree is for
+	 * @return the position of the tree's root in the node arrays
+	 */
+	private int buildTree(double[] scores, int output) {
+		int n = order.length;
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+
+		Leaf root = new Leaf(0, n, 0, getHistogram(0, n));
+		root.node = addNode();
+		findSplit(root);
+
+		ArrayList<Leaf> leaves = new ArrayList<Leaf>();
+		leaves.add(root);
+
+		PriorityQueue<Leaf> candidates = new PriorityQueue<Leaf>();
+		if (root.column != -1) {
+			candidates.add(root);
+		}
+
+		int numLeaves = 1;
+		while (numLeaves < maxLeaves && !candidates.isEmpty()) {
+			Leaf leaf = candidates.poll();
+			int mid = partition(leaf.start, leaf.end, leaf.column, leaf.bin);
+
+			// count the smaller child's histogram and subtract it from the
+			// leaf's to get the bigger child's
+			Histogram leftHistogram;
+			Histogram rightHistogram;
+			if (mid - leaf.start <= leaf.end - mid) {
+				leftHistogram = getHistogram(leaf.start, mid);
+				leaf.histogram.subtract(leftHistogram);
+				rightHistogram = leaf.histogram;
+			} else {
+				rightHistogram = getHistogram(mid, leaf.end);
+				leaf.histogram.subtract(rightHistogram);
+				leftHistogram = leaf.histogram;
+			}
+			leaf.histogram = null;
+
+			Leaf left = new Leaf(leaf.start, mid, leaf.depth + 1, leftHistogram);
+			Leaf right = new Leaf(mid, leaf.end, leaf.depth + 1, rightHistogram);
+			left.node = addNode();
+			right.node = addNode();
+
+			nodeFeatures[leaf.node] = bins.getFeature(leaf.column);
+			thresholds[leaf.node] = bins.getUpperBound(leaf.column, leaf.bin);
+			leftChildren[leaf.node] = left.node;
+			rightChildren[leaf.node] = right.node;
+
+			for (Leaf child : new Leaf[] { left, right }) {
+				leaves.add(child);
+				findSplit(child);
+				if (child.column != -1) {
+					candidates.add(child);
+				}
+			}
+
+			numLeaves++;
+		}
+
+		// set the values of the leaves and add them to the scores
+		for (Leaf leaf : leaves) {
+			if (nodeFeatures[leaf.node] != -1) {
+				continue;
+			}
+
+			double gradient = 0;
+			double hessian = 0;
+			for (int p = leaf.start; p < leaf.end; p++) {
+				gradient += gradients[order[p]];
+				hessian += hessians[order[p]];
+			}
+
+			double value = -learningRate * gradient / (hessian + l2);
+			leafValues[leaf.node] = value;
+			for (int p = leaf.start; p < leaf.end; p++) {
+				scores[order[p] * numOutputs + output] += value;
+			}
+		}
+
+		return root.node;
+	}
+
+	/**
+	 * @return the position of a new leaf in the node arrays
+	 */
+	private int addNode() {
+		nodeFeatures[numNodes] = -1;
+		return numNodes++;
+	}
+
+	/**
+	 * Find the split of the leaf that reduces the loss the most, leaving
+	 * leaf.column -1 if there isn't one. Ties go to the smaller feature index,
+	 * then the smaller threshold.
+	 *
+	 * @param leaf
+	 */
+	private void findSplit(Leaf leaf) {
+		leaf.column = -1;
+		int count = leaf.end - leaf.start;
+		int minCount = Math.max(1, minExamplesPerLeaf);
+		if (leaf.depth >= depthLimit || count < 2 * minCount) {
+			return;
+		}
+
+		Histogram histogram = leaf.histogram;
+		double gradient = leaf.gradient;
+		double hessian = leaf.hessian;
+		double unsplit = gradient * gradient / (hessian + l2);
+
+		for (int column = 0; column < zeroBins.length; column++) {
+			double leftGradient = 0;
+			double leftHessian = 0;
+			double leftCount = 0;
+
+			for (int bin = 0; bin < histogram.getNumBins(column) - 1; bin++) {
+				leftGradient += histogram.get(column, bin, GRADIENT);
+				leftHessian += histogram.get(column, bin, HESSIAN);
+				leftCount += histogram.get(column, bin, COUNT);
+
+				if (count - leftCount < minCount) {
+					break;
+				} else if (leftCount < minCount) {
+					continue;
+				}
+
+				double rightGradient = gradient - leftGradient;
+				double rightHessian = hessian - leftHessian;
+				double gain = leftGradient * leftGradient / (leftHessian + l2)
+						+ rightGradient * rightGradient / (rightHessian + l2) - unsplit;
+
+				if (gain > leaf.gain) {
+					leaf.gain = gain;
+					leaf.column = column;
+					leaf.bin = bin;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count the gradients, hessians and examples in order[start, end) in each
+	 * feature bin
+	 *
+	 * @param start
+	 * @param end
+	 * @return the histogram
+	 */
+	private Histogram getHistogram(int start, int end) {
+		int numChunks = (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		Histogram histogram = new Histogram(bins.getBinOffsets(), 3);
+
+		if (pool != null && numChunks > 1) {
+			ArrayList<Callable<Histogram>> chunks = new ArrayList<Callable<Histogram>>();
+			for (int c = 1; c < numChunks; c++) {
+				final int chunkStart = start + c * CHUNK_SIZE;
+				final int chunkEnd = Math.min(end, chunkStart + CHUNK_SIZE);
+				chunks.add(() -> {
+					Histogram chunk = new Histogram(bins.getBinOffsets(), 3);
+					count(chunkStart, chunkEnd, chunk);
+					return chunk;
+				});
+			}
+
+			ArrayList<Future<Histogram>> counted = new ArrayList<Future<Histogram>>();
+			for (Callable<Histogram> chunk : chunks) {
+				counted.add(pool.submit(chunk));
+			}
+			count(start, Math.min(end, start + CHUNK_SIZE), histogram);
+
+			try {
+				for (Future<Histogram> chunk : counted) {
+					histogram.add(chunk.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		} else {
+			count(start, Math.min(end, start + CHUNK_SIZE), histogram);
+
+			Histogram chunk = numChunks > 1 ? new Histogram(bins.getBinOffsets(), 3) : null;
+			for (int c = 1; c < numChunks; c++) {
+				int chunkStart = start + c * CHUNK_SIZE;
+				chunk.clear();
+				count(chunkStart, Math.min(end, chunkStart + CHUNK_SIZE), chunk);
+				histogram.add(chunk);
+			}
+		}
+
+		// the examples without a feature have value 0
+		double[] totals = new double[3];
+		for (int p = start; p < end; p++) {
+			totals[GRADIENT] += gradients[order[p]];
+			totals[HESSIAN] += hessians[order[p]];
+		}
+		totals[COUNT] = end - start;
+
+		for (int column = 0; column < zeroBins.length; column++) {
+			for (int statistic = 0; statistic < 3; statistic++) {
+				double stored = 0;
+				for (int bin = 0; bin < histogram.getNumBins(column); bin++) {
+					stored += histogram.get(column, bin, statistic);
+				}
+				histogram.add(column, zeroBins[column], statistic, totals[statistic] - stored);
+			}
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * Add the stored features of the examples in order[start, end) to the
+	 * histogram
+	 */
+	private void count(int start, int end, Histogram histogram) {
+		for (int p = start; p < end; p++) {
+			int i = order[p];
+			int[] indices = exampleIndices[i];
+			int[] featureBins = exampleBins[i];
+			double gradient = gradients[i];
+			double hessian = hessians[i];
+
+			for (int k = 0; k < indices.length; k++) {
+				int column = bins.getColumn(indices[k]);
+				histogram.add(column, featureBins[k], GRADIENT, gradient);
+				histogram.add(column, featureBins[k], HESSIAN, hessian);
+				histogram.add(column, featureBins[k], COUNT, 1);
+			}
+		}
+	}
+
+	/**
+	 * Split the examples in order[start, end) on whether their bin for column is
+	 * <= bin, keeping the examples on each side in the same relative order
+	 *
+	 * @return where the right side starts
+	 */
+	private int partition(int start, int end, int column, int bin) {
+		int feature = bins.getFeature(column);
+		int left = start;
+		int right = start;
+
+		for (int p = start; p < end; p++) {
+			int i = order[p];
+			int k = Arrays.binarySearch(exampleIndices[i], feature);
+			int exampleBin = k >= 0 ? exampleBins[i][k] : zeroBins[column];
+
+			if (exampleBin <= bin) {
+				order[left++] = i;
+			} else {
+				partitionBuffer[right++] = i;
+			}
+		}
+
+		System.arraycopy(partitionBuffer, start, order, left, right - start);
+		return left;
+	}
+
+	/**
+	 * Turn the scores into probabilities: the sigmoid of the score with one
+	 * score, otherwise the softmax of each example's scores
+	 */
+	private void computeProbabilities(double[] scores, double[] probabilities) {
+		int n = scores.length / numOutputs;
+		for (int i = 0; i < n; i++) {
+			probability(scores, i * numOutputs, numOutputs, probabilities, i * numOutputs);
+		}
+	}
+
+	/**
+	 * Compute the probabilities for one example's scores
+	 */
+	private static void probability(double[] scores, int from, int numOutputs, double[] probabilities, int to) {
+		if (numOutputs == 1) {
+			probabilities[to] = 1 / (1 + Math.exp(-scores[from]));
+			return;
+		}
+
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < numOutputs; k++) {
+			max = Math.max(max, scores[from + k]);
+		}
+
+		double total = 0;
+		for (int k = 0; k < numOutputs; k++) {
+			probabilities[to + k] = Math.exp(scores[from + k] - max);
+			total += probabilities[to + k];
+		}
+		for (int k = 0; k < numOutputs; k++) {
+			probabilities[to + k] /= total;
+		}
+	}
+
+	private static double clamp(double p) {
+		return Math.min(Math.max(p, 1e-6), 1 - 1e-6);
+	}
+
+	@Override
+	public double classify(Example example) {
+		return model.classify(example);
+	}
+
+	/**
+	 * The probability of the predicted label
+	 */
+	@Override
+	public double confidence(Example example) {
+		return model.confidence(example);
+	}
+
+	@Override
+	public double[][] classify(List<Example> examples) {
+		return model.classify(examples);
+	}
+
+	@Override
+	public Model getModel() {
+		return model;
+	}
+
+	/**
+	 * A leaf of the tree being grown, with its examples' statistics and its best
+	 * split
+	 */
+	private class Leaf implements Comparable<Leaf> {
+		// the leaf's examples are order[start, end)
+		public int start;
+		public int end;
+		public int depth;
+		public int node;
+
+		public Histogram histogram;
+		public double gradient;
+		public double hessian;
+
+		// the best split sends the examples in bins [0, bin] of column left
+		public int column = -1;
+		public int bin;
+		public double gain = 0;
+
+		public Leaf(int start, int end, int depth, Histogram histogram) {
+			this.start = start;
+			this.end = end;
+			this.depth = depth;
+			this.histogram = histogram;
+
+			for (int p = start; p < end; p++) {
+				gradient += gradients[order[p]];
+				hessian += hessians[order[p]];
+			}
+		}
+
+		/**
+		 * The leaf with the bigger gain comes first, and the earlier leaf for
+		 * ties
+		 */
+		public int compareTo(Leaf other) {
+			int byGain = Double.compare(other.gain, gain);
+			return byGain != 0 ? byGain : Integer.compare(node, other.node);
+		}
+	}
+
+	/**
+	 * The trained trees flattened into parallel arrays. Tree r*numOutputs + k is
+	 * the round r tree for score k, and its root is at treeRoots[r*numOutputs +
+	 * k]. nodeFeatures is the feature index an internal node splits on (-1 for
+	 * leaves); examples with values <= the threshold go left.
+	 */
+	private static final class GradientBoostedTreesModel implements Model {
+		// the labels in the training data, in increasing order
+		private final double[] labels;
+
+		// number of scores per example: 1 with two labels, otherwise one per label
+		private final int numOutputs;
+
+		// the scores before any trees
+		private final double[] baseScores;
+
+		private final int[] treeRoots;
+		private final int[] nodeFeatures;
+		private final double[] thresholds;
+		private final int[] leftChildren;
+		private final int[] rightChildren;
+		private final double[] leafValues;
+
+		public GradientBoostedTreesModel(double[] labels, int numOutputs, double[] baseScores, int[] treeRoots,
+				int[] nodeFeatures, double[] thresholds, int[] leftChildren, int[] rightChildren, double[] leafValues) {
+			this.labels = labels;
+			this.numOutputs = numOutputs;
+			this.baseScores = baseScores;
+			this.treeRoots = treeRoots;
+			this.nodeFeatures = nodeFeatures;
+			this.thresholds = thresholds;
+			this.leftChildren = leftChildren;
+			this.rightChildren = rightChildren;
+			this.leafValues = leafValues;
+		}
+
+		@Override
+		public double classify(Example example) {
+			return predict(example)[0];
+		}
+
+		/**
+		 * The probability of the predicted label
+		 */
+		@Override
+		public double confidence(Example example) {
+			return predict(example)[1];
+		}
+
+		/**
+		 * Classify all the examples, in parallel
+		 *
+		 * @param examples
+		 * @return {predicted labels, confidences}, indexed like examples
+		 */
+		@Override
+		public double[][] classify(final List<Example> examples) {
+			final double[][] results = new double[2][examples.size()];
+
+			IntStream.range(0, examples.size()).parallel().forEach(i -> {
+				double[] result = predict(examples.get(i));
+				results[0][i] = result[0];
+				results[1][i] = result[1];
+			});
+
+			return results;
+		}
+
+		/**
+		 * @param example
+		 * @return {the predicted label (ties going to the smaller label), its
+		 *         probability}
+		 */
+		private double[] predict(Example example) {
+			int[] indices = example.getSparseIndices();
+			double[] values = example.getSparseValues();
+
+			double[] scores = baseScores.clone();
+			for (int t = 0; t < treeRoots.length; t++) {
+				int node = treeRoots[t];
+				int feature;
+				while ((feature = nodeFeatures[node]) >= 0) {
+					int k = Arrays.binarySearch(indices, feature);
+					double value = k >= 0 ? values[k] : 0.0;
+					node = value <= thresholds[node] ? leftChildren[node] : rightChildren[node];
+				}
+				scores[t % numOutputs] += leafValues[node];
+			}
+
+			double[] probabilities = new double[numOutputs];
+			probability(scores, 0, numOutputs, probabilities, 0);
+
+			if (numOutputs == 1) {
+				double p = probabilities[0];
+				return p > 0.5 ? new double[] { labels[labels.length - 1], p } : new double[] { labels[0], 1 - p };
+			}
+
+			int best = 0;
+			for (int k = 1; k < numOutputs; k++) {
+				if (probabilities[k] > probabilities[best]) {
+					best = k;
+				}
+			}
+			return new double[] { labels[best], probabilities[best] };
+		}
+
+		@Override
+		public long memoryFootprint() {
+			int n = nodeFeatures.length;
+			return OBJECT_BYTES + Model.arrayBytes(labels.length, 8) + Model.arrayBytes(baseScores.length, 8)
+					+ Model.arrayBytes(treeRoots.length, 4) + 3 * Model.arrayBytes(n, 4) + 2 * Model.arrayBytes(n, 8);
+		}
+	}
+}
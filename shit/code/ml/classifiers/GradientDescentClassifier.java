@@ -1,9 +1,17 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 import ml.data.DataSet;
 import ml.data.Example;
@@ -17,7 +25,7 @@ import ml.data.Example;
  * @author xkoo
  *
  */
-public class GradientDescentClassifier implements Classifier {
+public class GradientDescentClassifier implements LinearClassifier {
 	// constants for the different surrogate loss functions
 	public static final int EXPONENTIAL_LOSS = 0;
 	public static final int HINGE_LOSS = 1;
@@ -27,6 +35,16 @@ public class GradientDescentClassifier implements Classifier {
 	public static final int L1_REGULARIZATION = 1;
 	public static final int L2_REGULARIZATION = 2;
 
+	// constants for the different ways of running training
+	public static final int SEQUENTIAL = 0;
+	public static final int HOGWILD = 1;
+	public static final int MINI_BATCH = 2;
+
+	// constants for the different learning rate schedules
+	public static final int CONSTANT_RATE = 0;
+	public static final int DECAYING_RATE = 1;
+	public static final int ADAGRAD = 2;
+
 	// should we print statements corresponding with questions?
 	private boolean printQuestion1 = false;
 	private boolean printQ3Q4 = false;
@@ -35,8 +53,36 @@ public class GradientDescentClassifier implements Classifier {
 	protected int lossType = 0;
 	protected int regType = 0;
 
-	/** the feature weights */
-	protected HashMap<Integer, Double> weights;
+	/**
+	 * the feature weights, indexed by feature index. During training these are
+	 * stored lazily: the actual weight of feature j is weightScale * weights[j],
+	 * moved towards 0 by the L1 penalty of the updates since it was last changed
+	 * (totalPenalty - appliedPenalty[j]). Every weight is regularized on every
+	 * update, and L1 never moves a weight past 0, so with sparse examples L1 and
+	 * L2 results differ from the old scheme that only regularized the weights an
+	 * example touched.
+	 */
+	protected double[] weights;
+
+	/** global scale factor for the weights, used for lazy L2 regularization */
+	protected double weightScale = 1;
+
+	/**
+	 * for lazy L1 regularization, the total penalty over all updates so far and
+	 * what that total was when each weight was last brought up to date
+	 */
+	protected double totalPenalty;
+	protected double[] appliedPenalty;
+
+	/** for ADAGRAD, the summed squared gradients of each weight and the bias */
+	protected double[] squaredGradients;
+	protected double biasSquaredGradient;
+
+	/** number of updates made so far in training */
+	protected int step;
+
+	/** the feature indices we're learning over, in increasing order */
+	protected int[] featureIndices;
 
 	/** the intersect weight */
 	protected double b = 0;
@@ -49,21 +95,44 @@ public class GradientDescentClassifier implements Classifier {
 
 	protected int iterations = 10;
 
+	/** how training is run, and on how many threads for the parallel modes */
+	protected int trainingMode = SEQUENTIAL;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	/** number of examples per update in MINI_BATCH mode */
+	protected int batchSize = 32;
+
+	/** seed for shuffling the examples, if we want reproducible training */
+	protected Long seed = null;
+
+	/** if set, examples with this label are positive and all others negative */
+	protected Double positiveLabel = null;
+
+	/** learning rate schedule, and how fast the rate decays for DECAYING_RATE */
+	protected int rateSchedule = CONSTANT_RATE;
+	protected double decay = 0.001;
+
 	/**
-	 * Get a weight vector over the set of features with each weight set to 0
-	 * 
-	 * @param features the set of features to learn over
-	 * @return
+	 * stop once the loss over an iteration improves by less than this fraction of
+	 * the previous iteration's loss (0 to always run every iteration)
 	 */
-	protected HashMap<Integer, Double> getZeroWeights(Set<Integer> features) {
-		HashMap<Integer, Double> temp = new HashMap<Integer, Double>();
+	protected double stoppingTolerance = 0;
 
-		for (Integer f : features) {
-			temp.put(f, 0.0);
-		}
+	/** if set, stop once accuracy on this data hasn't improved for patience iterations */
+	protected DataSet validationData = null;
+	protected int patience = 1;
 
-		return temp;
-	}
+	/** number of iterations the last call to train actually ran */
+	protected int iterationsRun = 0;
+
+	// how small weightScale can get before we fold it back into the weights
+	private static final double MIN_WEIGHT_SCALE = 1e-9;
+
+	// keeps ADAGRAD from dividing by 0
+	private static final double ADAGRAD_EPSILON = 1e-8;
+
+	// examples each thread trains on in a HOGWILD round, between regularization steps
+	private static final int HOGWILD_BLOCK = 256;
 
 	/**
 	 * Initialize the weights and the intersect value
@@ -71,7 +140,21 @@ public class GradientDescentClassifier implements Classifier {
 	 * @param features
 	 */
 	protected void initializeWeights(Set<Integer> features) {
-		weights = getZeroWeights(features);
+		featureIndices = new int[features.size()];
+		int i = 0;
+		for (Integer f : features) {
+			featureIndices[i++] = f;
+		}
+		Arrays.sort(featureIndices);
+
+		int size = featureIndices.length == 0 ? 0 : featureIndices[featureIndices.length - 1] + 1;
+		weights = new double[size];
+		appliedPenalty = new double[size];
+		squaredGradients = rateSchedule == ADAGRAD ? new double[size] : null;
+		biasSquaredGradient = 0;
+		totalPenalty = 0;
+		weightScale = 1;
+		step = 0;
 		b = 0;
 	}
 
@@ -121,6 +204,129 @@ public class GradientDescentClassifier implements Classifier {
 		this.iterations = iterations;
 	}
 
+	/**
+	 * Set how training is run. SEQUENTIAL (the default) makes one pass over the
+	 * shuffled examples per iteration. HOGWILD splits each pass across threads
+	 * that all update the same weights without any locking, and regularizes all
+	 * the weights between rounds of a few hundred examples per thread.
+	 * 
+	 * MINI_BATCH averages the gradient over batches of examples and makes one
+	 * (regularized) update per batch. The gradients within a batch are computed in
+	 * parallel, one chunk of the batch per thread, and summed in a fixed order, so
+	 * with a seed set training is reproducible for a given batch size and number
+	 * of threads.
+	 * 
+	 * @param mode one of SEQUENTIAL, HOGWILD, MINI_BATCH
+	 */
+	public void setTrainingMode(int mode) {
+		trainingMode = mode;
+	}
+
+	/**
+	 * Set the number of threads used by the parallel training modes. Defaults to
+	 * the number of processors.
+	 * 
+	 * @param threads at least 1
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new RuntimeException("Training needs at least one thread: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Set how the learning rate changes over training. CONSTANT_RATE (the default)
+	 * always uses eta. DECAYING_RATE uses eta / (1 + decay * t) for the t-th
+	 * update; in HOGWILD training an example's t is its position in the shuffled
+	 * pass, whichever thread trains on it. ADAGRAD gives each weight the rate eta
+	 * / sqrt(sum of its squared gradients); with ADAGRAD weights are regularized
+	 * when they are updated rather than lazily.
+	 * 
+	 * @param schedule one of CONSTANT_RATE, DECAYING_RATE, ADAGRAD
+	 */
+	public void setLearningRateSchedule(int schedule) {
+		rateSchedule = schedule;
+	}
+
+	/**
+	 * Set how fast the learning rate decays for DECAYING_RATE
+	 * 
+	 * @param decay
+	 */
+	public void setDecay(double decay) {
+		this.decay = decay;
+	}
+
+	/**
+	 * Stop training early once the summed loss over an iteration improves by less
+	 * than tolerance times the previous iteration's loss. iterations is then just
+	 * the maximum number of iterations.
+	 * 
+	 * @param tolerance the relative improvement needed to keep going (0 to turn
+	 *                  early stopping off)
+	 */
+	public void setEarlyStopping(double tolerance) {
+		stoppingTolerance = tolerance;
+	}
+
+	/**
+	 * Stop training early once accuracy on held-out data hasn't improved for
+	 * patience iterations, and keep the weights from the best iteration.
+	 * 
+	 * @param validation held-out data (null to turn this off)
+	 * @param patience   number of iterations without improvement to allow
+	 */
+	public void setValidationData(DataSet validation, int patience) {
+		validationData = validation;
+		this.patience = patience;
+	}
+
+	/**
+	 * @return the number of iterations the last call to train ran for
+	 */
+	public int getIterationsRun() {
+		return iterationsRun;
+	}
+
+	/**
+	 * Set the number of examples per update for MINI_BATCH training
+	 * 
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set the seed used to shuffle the examples between iterations. By default
+	 * the order is different every time.
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public void setPositiveLabel(double label) {
+		positiveLabel = label;
+	}
+
+	/**
+	 * Get the label to train on for this example: its actual label, or +1/-1 if
+	 * we're training one label against the rest
+	 * 
+	 * @param e
+	 * @return the label
+	 */
+	protected double getTrainingLabel(Example e) {
+		if (positiveLabel == null) {
+			return e.getLabel();
+		}
+		return e.getLabel() == positiveLabel ? 1.0 : -1.0;
+	}
+
 	/**
 	 * Sets the boolean that decides whether or not to print the weights
 	 * before/after every example, for question 1
@@ -161,82 +367,473 @@ public class GradientDescentClassifier implements Classifier {
 		initializeWeights(data.getAllFeatureIndices());
 		ArrayList<Example> training = new ArrayList<Example>(data.getData());
 
-		// Saves the weights/bias when we calculate loss so we can use these working
-		// weights when we regularize
-		HashMap<Integer, Double> weightsInProgress = new HashMap<Integer, Double>();
-		double bInProgress = b;
-
 		// Used for question 5. Gets the loss at the final iteration
 		double finalLoss = 0;
 
-		for (int it = 0; it < iterations; it++) {
-			// Don't shuffle if we're handling question 1
-			if (!printQuestion1)
-				Collections.shuffle(training);
-			else
-				System.out.println("~~~~~~~~~~~~~~~~~~~ ITERATION " + (it) + ": ~~~~~~~~~~~~~~~~~~~");
-
-			// Keep track of the sum of the loss values for each iteration (question 3, 4)
-			double lossSum = 0;
-
-			// Iterate through every example in the training set
-			for (Example e : training) {
-
-				// All of the following are constant within a single example
-				// The label of the example
-				double y_i = e.getLabel();
-				// y' = w_i * x_i + b
-				double yPrime = getDistanceFromHyperplane(e, weights, b);
-				// calculate the derivatives of the loss functions
-				double hingeDeriv = (y_i * yPrime < 1) ? 1 : 0, expDeriv = Math.exp(-y_i * yPrime);
-
-				// Experiment for (3), getting the summed loss functions across each iteration
-				lossSum += loss(y_i, yPrime);
-
-				// Prints values of weights/bias (for question 1) before weight/bias update
-				if (printQuestion1) {
-					System.out.println("BEFORE EXAMPLE:\n\tWeights:\t" + weights.toString() + "\n\tBias:   \t" + b
-							+ "\n-------------------");
-				}
+		// for early stopping
+		double previousLoss = Double.POSITIVE_INFINITY;
+		double bestAccuracy = -1;
+		int sinceBest = 0;
+		double[] bestWeights = null;
+		double bestB = 0;
+		iterationsRun = 0;
+
+		Random random = seed == null ? new Random() : new Random(seed);
+		ExecutorService pool = trainingMode == SEQUENTIAL ? null : Executors.newFixedThreadPool(threads);
+		BatchAccumulator[] accumulators = null;
+		if (trainingMode == MINI_BATCH) {
+			accumulators = new BatchAccumulator[threads];
+			for (int i = 0; i < threads; i++) {
+				accumulators[i] = new BatchAccumulator(weights.length);
+			}
+		}
+
+		try {
+			for (int it = 0; it < iterations; it++) {
+				// Don't shuffle if we're handling question 1
+				if (!printQuestion1)
+					Collections.shuffle(training, random);
+				else
+					System.out.println("~~~~~~~~~~~~~~~~~~~ ITERATION " + (it) + ": ~~~~~~~~~~~~~~~~~~~");
 
-				/*
-				 * Calculate weight updates wrt the loss correction update bias as if it were
-				 * associated with some feature == 1. store these values into temp variables.
-				 * bInProgress is updated outside of the method, because it is a local variable
-				 * of a primitive type and changes made to the variable won't be reflected
-				 * outside the method
-				 */
-				switch (lossType) {
-				case EXPONENTIAL_LOSS:
-					calculateWeightsLossCorrection(weightsInProgress, e, expDeriv);
-					bInProgress = b + eta * y_i * expDeriv;
+				// Keep track of the sum of the loss values for each iteration (question 3, 4)
+				double lossSum;
+
+				switch (trainingMode) {
+				case HOGWILD:
+					lossSum = hogwildEpoch(training, pool);
+					break;
+				case MINI_BATCH:
+					lossSum = miniBatchEpoch(training, pool, accumulators);
 					break;
-				case HINGE_LOSS:
-					calculateWeightsLossCorrection(weightsInProgress, e, hingeDeriv);
-					bInProgress = b + eta * y_i * hingeDeriv;
+				default:
+					lossSum = sequentialEpoch(training);
 					break;
 				}
 
-				// update the values of weights, b.
-				calculateRegularization(weightsInProgress, bInProgress, e);
+				// Prints the summed loss for each iteration (question 3, 4)
+				if (printQ3Q4)
+					System.out.println("Summed loss @ it=" + it + "\t" + lossSum);
+
+				finalLoss = lossSum;
+				iterationsRun++;
 
-				// Prints values of weights/bias (for question 1) after weight/bias update
-				if (printQuestion1) {
-					System.out.println("AFTER EXAMPLE:\n\tWeights:\t" + weights.toString() + "\n\tBias:   \t" + b
-							+ "\n-------------------");
+				// stop once we're no longer doing better on the held-out data
+				if (validationData != null) {
+					double accuracy = getAccuracy(validationData);
+
+					if (accuracy > bestAccuracy) {
+						bestAccuracy = accuracy;
+						bestWeights = getCurrentWeights();
+						bestB = b;
+						sinceBest = 0;
+					} else if (++sinceBest >= patience) {
+						break;
+					}
 				}
-			}
 
-			// Prints the summed loss for each iteration (question 3, 4)
-			if (printQ3Q4)
-				System.out.println("Summed loss @ it=" + it + "\t" + lossSum);
+				// stop once the loss has converged
+				if (stoppingTolerance > 0 && previousLoss - lossSum < stoppingTolerance * Math.abs(previousLoss)) {
+					break;
+				}
+				previousLoss = lossSum;
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
 
-			finalLoss = lossSum;
+		// apply any outstanding regularization so weights holds the actual weights,
+		// or go back to the best weights on the held-out data
+		if (bestWeights != null) {
+			weights = bestWeights;
+			b = bestB;
+			weightScale = 1;
+			Arrays.fill(appliedPenalty, totalPenalty);
+		} else {
+			flushRegularization();
 		}
+
 		if (printQuestion5)
 			System.out.println(finalLoss);
 	}
 
+	/**
+	 * Make one pass over the training examples, updating the weights after each
+	 * one.
+	 * 
+	 * @param training the examples, in the order to visit them
+	 * @return the summed loss over the examples
+	 */
+	private double sequentialEpoch(ArrayList<Example> training) {
+		double lossSum = 0;
+
+		// Iterate through every example in the training set
+		for (Example e : training) {
+			int[] features = e.getSparseIndices();
+			double[] values = e.getSparseValues();
+
+			// bring the weights we're about to use up to date with the L1 penalty
+			if (regType == L1_REGULARIZATION) {
+				applyPendingL1(features);
+			}
+
+			// All of the following are constant within a single example
+			// The label of the example
+			double y_i = getTrainingLabel(e);
+			// y' = w_i * x_i + b
+			double yPrime = getDistanceFromHyperplane(features, values);
+
+			// Experiment for (3), getting the summed loss functions across each iteration
+			lossSum += loss(y_i, yPrime);
+
+			// Prints values of weights/bias (for question 1) before weight/bias update
+			if (printQuestion1) {
+				System.out.println("BEFORE EXAMPLE:\n\tWeights:\t" + toString() + "\n\tBias:   \t" + b
+						+ "\n-------------------");
+			}
+
+			// update the weights wrt the loss correction (treating the bias as a
+			// feature that is always 1), with regularization
+			update(features, values, y_i * lossDerivative(y_i, yPrime));
+
+			// Prints values of weights/bias (for question 1) after weight/bias update
+			if (printQuestion1) {
+				System.out.println("AFTER EXAMPLE:\n\tWeights:\t" + toString() + "\n\tBias:   \t" + b
+						+ "\n-------------------");
+			}
+		}
+
+		return lossSum;
+	}
+
+	/**
+	 * Make one pass over the training examples in rounds, with each thread taking
+	 * a block of HOGWILD_BLOCK examples per round. The threads read and write
+	 * weights (and the bias) without any synchronization: with sparse examples two
+	 * threads rarely touch the same weight, and when they do one update may be
+	 * lost, which SGD tolerates.
+	 * 
+	 * Between rounds, when no thread is running, every weight is regularized for
+	 * the round's updates the same lazy way update does it, so HOGWILD minimizes
+	 * the same objective as SEQUENTIAL.
+	 * 
+	 * @param training the examples, in the order to visit them
+	 * @param pool     the threads to run on
+	 * @return the summed loss over the examples
+	 */
+	private double hogwildEpoch(ArrayList<Example> training, ExecutorService pool) {
+		double lossSum = 0;
+		int roundSize = threads * HOGWILD_BLOCK;
+
+		for (int roundStart = 0; roundStart < training.size(); roundStart += roundSize) {
+			int roundEnd = Math.min(roundStart + roundSize, training.size());
+
+			// the bias lives in a shared array so every thread sees the others' updates
+			final double[] bias = { b };
+
+			ArrayList<Future<Double>> losses = new ArrayList<Future<Double>>();
+			for (int start = roundStart; start < roundEnd; start += HOGWILD_BLOCK) {
+				final List<Example> block = training.subList(start, Math.min(start + HOGWILD_BLOCK, roundEnd));
+				final int firstStep = step + start - roundStart;
+				losses.add(pool.submit(new Callable<Double>() {
+					public Double call() {
+						return hogwildBlock(block, bias, firstStep);
+					}
+				}));
+			}
+
+			try {
+				for (Future<Double> loss : losses) {
+					lossSum += loss.get();
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("Hogwild training failed", e);
+			}
+
+			b = bias[0];
+			regularizeRound(roundEnd - roundStart);
+			step += roundEnd - roundStart;
+		}
+
+		return lossSum;
+	}
+
+	/**
+	 * Update the shared weights for each example in block. weightScale and
+	 * totalPenalty don't change during a round, so the weights can be read and
+	 * updated lazily without synchronization; the regularization for the round's
+	 * updates is left to regularizeRound. With ADAGRAD each weight is regularized
+	 * as it's updated, as in SEQUENTIAL.
+	 * 
+	 * @param block     the examples to train on
+	 * @param bias      the shared bias
+	 * @param firstStep the update number of the block's first example, which
+	 *                  sets the decaying learning rate
+	 * @return the summed loss over the examples
+	 */
+	private double hogwildBlock(List<Example> block, double[] bias, int firstStep) {
+		double[] w = weights;
+		double scale = weightScale;
+		double penalty = totalPenalty;
+		double lossSum = 0;
+		int t = firstStep;
+
+		for (Example e : block) {
+			int[] features = e.getSparseIndices();
+			double[] values = e.getSparseValues();
+			double y_i = getTrainingLabel(e);
+
+			// bring the weights up to date with the L1 penalty as we read them
+			double sum = 0;
+			for (int i = 0; i < features.length; i++) {
+				int featureIndex = features[i];
+				if (featureIndex < w.length) {
+					if (appliedPenalty[featureIndex] < penalty) {
+						w[featureIndex] = shrink(w[featureIndex], penalty - appliedPenalty[featureIndex]);
+						appliedPenalty[featureIndex] = penalty;
+					}
+					sum += w[featureIndex] * values[i];
+				}
+			}
+			double yPrime = scale * sum + bias[0];
+
+			lossSum += loss(y_i, yPrime);
+			double gradient = y_i * lossDerivative(y_i, yPrime);
+
+			if (rateSchedule == ADAGRAD) {
+				for (int i = 0; i < features.length; i++) {
+					int featureIndex = features[i];
+					if (featureIndex < w.length) {
+						double g = gradient * values[i];
+						squaredGradients[featureIndex] += g * g;
+						double r = adaGradRate(squaredGradients[featureIndex]);
+
+						double w_j = w[featureIndex];
+						w[featureIndex] = w_j + r * g - r * lambda * regularizationGradient(w_j);
+					}
+				}
+
+				biasSquaredGradient += gradient * gradient;
+				double r = adaGradRate(biasSquaredGradient);
+				double b_old = bias[0];
+				bias[0] = b_old + r * gradient - r * lambda * regularizationGradient(b_old);
+			} else {
+				double delta = rateAt(t) * gradient;
+
+				// in terms of the scaled weights
+				double scaledDelta = delta / scale;
+				for (int i = 0; i < features.length; i++) {
+					if (features[i] < w.length) {
+						w[features[i]] += scaledDelta * values[i];
+					}
+				}
+				bias[0] += delta;
+			}
+			t++;
+		}
+
+		return lossSum;
+	}
+
+	/**
+	 * Regularize every weight and the bias for a round of HOGWILD updates, the
+	 * first of which is update number step: L2 shrinks weightScale by the product
+	 * of the round's (1 - rate * lambda) and L1 adds the summed rate * lambda to
+	 * totalPenalty, to be applied to each weight when it's next used.
+	 * 
+	 * @param updates the number of updates in the round
+	 */
+	private void regularizeRound(int updates) {
+		if (rateSchedule == ADAGRAD || regType == NO_REGULARIZATION) {
+			return;
+		}
+
+		double penalty = 0;
+		double shrinkage = 1;
+		for (int t = step; t < step + updates; t++) {
+			double rateLambda = rateAt(t) * lambda;
+			penalty += rateLambda;
+			shrinkage *= 1 - rateLambda;
+		}
+
+		if (regType == L1_REGULARIZATION) {
+			totalPenalty += penalty;
+			b = shrink(b, penalty);
+		} else {
+			if (shrinkage == 0) {
+				// everything is regularized all the way to 0
+				Arrays.fill(weights, 0);
+				weightScale = 1;
+			} else {
+				weightScale *= shrinkage;
+			}
+			b *= shrinkage;
+
+			// keep the scale from underflowing
+			if (Math.abs(weightScale) < MIN_WEIGHT_SCALE) {
+				flushRegularization();
+			}
+		}
+	}
+
+	/**
+	 * Make one pass over the training examples in batches of batchSize, updating
+	 * the weights once per batch with the average gradient over the batch.
+	 * 
+	 * @param training     the examples, in the order to visit them
+	 * @param pool         the threads to run on
+	 * @param accumulators one gradient accumulator per thread
+	 * @return the summed loss over the examples
+	 */
+	private double miniBatchEpoch(ArrayList<Example> training, ExecutorService pool,
+			BatchAccumulator[] accumulators) {
+		double lossSum = 0;
+
+		for (int start = 0; start < training.size(); start += batchSize) {
+			List<Example> batch = training.subList(start, Math.min(start + batchSize, training.size()));
+
+			// bring the weights the batch uses up to date with the L1 penalty, so the
+			// gradients can be computed without writing to the weights
+			if (regType == L1_REGULARIZATION) {
+				for (Example e : batch) {
+					applyPendingL1(e.getSparseIndices());
+				}
+			}
+
+			// compute the gradient for each chunk of the batch in parallel
+			final double scale = 1.0 / batch.size();
+			int chunkSize = (batch.size() + accumulators.length - 1) / accumulators.length;
+			int numChunks = (batch.size() + chunkSize - 1) / chunkSize;
+
+			ArrayList<Future<?>> chunks = new ArrayList<Future<?>>();
+			for (int c = 0; c < numChunks; c++) {
+				final List<Example> chunk = batch.subList(c * chunkSize, Math.min((c + 1) * chunkSize, batch.size()));
+				final BatchAccumulator accumulator = accumulators[c];
+				chunks.add(pool.submit(new Runnable() {
+					public void run() {
+						accumulator.clear();
+						for (Example e : chunk) {
+							int[] features = e.getSparseIndices();
+							double[] values = e.getSparseValues();
+							double y_i = getTrainingLabel(e);
+							double yPrime = getDistanceFromHyperplane(features, values);
+
+							accumulator.loss += loss(y_i, yPrime);
+							accumulator.add(features, values, scale * y_i * lossDerivative(y_i, yPrime));
+						}
+					}
+				}));
+			}
+
+			try {
+				for (Future<?> chunk : chunks) {
+					chunk.get();
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("Mini-batch training failed", e);
+			}
+
+			// sum the chunks in order so the result doesn't depend on scheduling
+			BatchAccumulator total = accumulators[0];
+			for (int c = 1; c < numChunks; c++) {
+				total.add(accumulators[c]);
+			}
+
+			lossSum += total.loss;
+			update(total.features, total.gatherSums(), total.size, 1.0, total.biasSum);
+		}
+
+		return lossSum;
+	}
+
+	/**
+	 * Compute the summed loss of the current weights over a data set
+	 * 
+	 * @param data
+	 * @return the summed loss
+	 */
+	public double getLoss(DataSet data) {
+		double lossSum = 0;
+		for (Example e : data.getData()) {
+			lossSum += loss(getTrainingLabel(e), getDistanceFromHyperplane(e));
+		}
+		return lossSum;
+	}
+
+	/**
+	 * Compute the objective training minimizes for the current weights over a data
+	 * set: the summed loss plus, since every update regularizes, the number of
+	 * examples times lambda times the L1 norm or half the squared L2 norm of the
+	 * weights and the bias
+	 * 
+	 * @param data
+	 * @return the regularized loss
+	 */
+	public double getObjective(DataSet data) {
+		double norm = 0;
+		for (int featureIndex : featureIndices) {
+			norm += regularizer(getWeight(featureIndex));
+		}
+		norm += regularizer(b);
+
+		return getLoss(data) + data.getData().size() * lambda * norm;
+	}
+
+	/**
+	 * @param w
+	 * @return the regularization penalty for a weight w, i.e. |w| for L1 and w^2 / 2
+	 *         for L2
+	 */
+	private double regularizer(double w) {
+		switch (regType) {
+		case L1_REGULARIZATION:
+			return Math.abs(w);
+		case L2_REGULARIZATION:
+			return w * w / 2;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Check that a model trained with one of the parallel modes converged: train a
+	 * SEQUENTIAL model with the same settings (everything but the training mode
+	 * and the number of threads) on data and compare the regularized losses (see
+	 * getObjective).
+	 * 
+	 * @pre train() has been called
+	 * @param data      the data this model was trained on
+	 * @param tolerance how much larger than the sequential objective ours may be,
+	 *                  relative to the sequential objective
+	 * @return whether our objective is within tolerance of the sequential one
+	 */
+	public boolean checkConvergence(DataSet data, double tolerance) {
+		GradientDescentClassifier sequential = new GradientDescentClassifier();
+		sequential.setLoss(lossType);
+		sequential.setRegularization(regType);
+		sequential.setLambda(lambda);
+		sequential.setEta(eta);
+		sequential.setIterations(iterations);
+		if (positiveLabel != null) {
+			sequential.setPositiveLabel(positiveLabel);
+		}
+		sequential.setLearningRateSchedule(rateSchedule);
+		sequential.setDecay(decay);
+		sequential.setBatchSize(batchSize);
+		if (seed != null) {
+			sequential.setSeed(seed);
+		}
+		sequential.setEarlyStopping(stoppingTolerance);
+		sequential.setValidationData(validationData, patience);
+		sequential.train(data);
+
+		double sequentialObjective = sequential.getObjective(data);
+		double objective = getObjective(data);
+		return objective <= sequentialObjective + tolerance * Math.abs(sequentialObjective);
+	}
+
 	/**
 	 * Predicts the label of an example using a perception classifier, trained using
 	 * gradient descent.
@@ -255,29 +852,37 @@ public class GradientDescentClassifier implements Classifier {
 	 *         hyperplane
 	 */
 	public double confidence(Example example) {
-		return Math.abs(getDistanceFromHyperplane(example, weights, b));
+		return Math.abs(getDistanceFromHyperplane(example));
 	}
 
 	/**
-	 * Get the prediction from the current set of weights on this example
+	 * Classify all the examples in parallel, computing each example's distance
+	 * from the hyperplane once for both its prediction and its confidence
 	 * 
-	 * @param e the example to predict
-	 * @return
+	 * @param examples
+	 * @return {predictions, confidences}, indexed like examples
 	 */
-	protected double getPrediction(Example e) {
-		return getPrediction(e, weights, b);
+	@Override
+	public double[][] classify(final List<Example> examples) {
+		final double[][] results = new double[2][examples.size()];
+
+		IntStream.range(0, examples.size()).parallel().forEach(i -> {
+			double sum = getDistanceFromHyperplane(examples.get(i));
+			results[0][i] = sum > 0 ? 1.0 : (sum < 0 ? -1.0 : 0);
+			results[1][i] = Math.abs(sum);
+		});
+
+		return results;
 	}
 
 	/**
-	 * Get the prediction from the on this example from using weights w and inputB
+	 * Get the prediction from the current set of weights on this example
 	 * 
-	 * @param e      example to predict
-	 * @param w      the set of weights to use
-	 * @param inputB the b value to use
-	 * @return the prediction
+	 * @param e the example to predict
+	 * @return
 	 */
-	protected static double getPrediction(Example e, HashMap<Integer, Double> w, double inputB) {
-		double sum = getDistanceFromHyperplane(e, w, inputB);
+	protected double getPrediction(Example e) {
+		double sum = getDistanceFromHyperplane(e.getSparseIndices(), e.getSparseValues());
 		if (sum > 0) {
 			return 1.0;
 		} else if (sum < 0) {
@@ -288,86 +893,292 @@ public class GradientDescentClassifier implements Classifier {
 	}
 
 	/**
-	 * 
 	 * @param e
-	 * @param w
-	 * @param inputB
+	 * @return w * x + b for the current weights
+	 */
+	protected double getDistanceFromHyperplane(Example e) {
+		return getDistanceFromHyperplane(e.getSparseIndices(), e.getSparseValues());
+	}
+
+	/**
+	 * Get w * x + b for an example given as parallel arrays of feature indices
+	 * and values. Any L1 penalty pending for these features must already have
+	 * been applied.
+	 * 
+	 * @param features
+	 * @param values
 	 * @return
 	 */
-	protected static double getDistanceFromHyperplane(Example e, HashMap<Integer, Double> w, double inputB) {
-		double sum = inputB;
+	protected double getDistanceFromHyperplane(int[] features, double[] values) {
+		double sum = 0;
 
-		// for(Integer featureIndex: w.keySet()){
 		// only need to iterate over non-zero features
-		for (Integer featureIndex : e.getFeatureSet()) {
-			sum += w.get(featureIndex) * e.getFeature(featureIndex);
+		for (int i = 0; i < features.length; i++) {
+			int featureIndex = features[i];
+			if (featureIndex < weights.length) {
+				sum += weights[featureIndex] * values[i];
+			}
 		}
 
-		return sum;
+		return weightScale * sum + b;
 	}
 
 	/**
-	 * Calculates the loss correction for each weight, and stores them into the
-	 * weightsInProgress hashmap.
+	 * Get the current weight of a feature
 	 * 
-	 * @param weightsInProgress hashmap to contain loss corrected weights
-	 * @param e                 example
-	 * @param lossDeriv         since derivative is constant for each
+	 * @param featureIndex
+	 * @return the weight, or 0 if it's not a feature we learned over
 	 */
-	private void calculateWeightsLossCorrection(HashMap<Integer, Double> weightsInProgress, Example e,
-			double lossDeriv) {
+	@Override
+	public double getWeight(int featureIndex) {
+		if (featureIndex < 0 || featureIndex >= weights.length) {
+			return 0;
+		}
 
-		Set<Integer> features = e.getFeatureSet();
-		double y_i = e.getLabel();
-		// calculate loss correction based on loss type. we adjust the weights for every
-		// feature before moving on to next example
-		for (Integer feature : features) {
-			double w_j = weights.get(feature);
-			double x_ij = e.getFeature(feature);
-			// Keep an in progress weight so that we can be consistent as we do
-			// regularization
-			weightsInProgress.put(feature, w_j + eta * y_i * x_ij * lossDeriv);
+		double w = weightScale * weights[featureIndex];
+		if (regType == L1_REGULARIZATION) {
+			w = shrink(w, totalPenalty - appliedPenalty[featureIndex]);
 		}
-		//
+		return w;
+	}
+
+	@Override
+	public double getBias() {
+		return b;
 	}
 
 	/**
-	 * Calculates the regularization for each weight, and updates the weights field.
-	 * Does the same for the bias and the b field.
+	 * The current weights with all regularization applied, so the model doesn't
+	 * need the lazy scale factor or the pending penalties
+	 */
+	@Override
+	public Model getModel() {
+		return new LinearModel(getCurrentWeights(), b);
+	}
+
+	/**
+	 * @return a copy of the current weights with all regularization applied
+	 */
+	private double[] getCurrentWeights() {
+		double[] current = new double[weights.length];
+		for (int j = 0; j < weights.length; j++) {
+			current[j] = getWeight(j);
+		}
+		return current;
+	}
+
+	/**
+	 * Get the fraction of examples in data the current weights get right. This
+	 * doesn't change any of the lazily stored weights.
 	 * 
-	 * @param weightsInProgress hashmap of loss corrected weights
-	 * @param bInProgress       loss corrected bias
-	 * @param e                 example
+	 * @param data
+	 * @return the accuracy
+	 */
+	private double getAccuracy(DataSet data) {
+		int correct = 0;
+		for (Example e : data.getData()) {
+			int[] features = e.getSparseIndices();
+			double[] values = e.getSparseValues();
+
+			double sum = b;
+			for (int i = 0; i < features.length; i++) {
+				sum += getWeight(features[i]) * values[i];
+			}
+
+			double prediction = sum > 0 ? 1.0 : (sum < 0 ? -1.0 : 0);
+			if (prediction == getTrainingLabel(e)) {
+				correct++;
+			}
+		}
+		return data.getData().size() == 0 ? 0 : correct / (double) data.getData().size();
+	}
+
+	/**
+	 * @return the learning rate for the next update (not used for ADAGRAD)
 	 */
-	private void calculateRegularization(HashMap<Integer, Double> weightsInProgress, double bInProgress, Example e) {
+	private double currentRate() {
+		return rateAt(step);
+	}
 
-		Set<Integer> features = e.getFeatureSet();
+	/**
+	 * @param t the number of updates before this one
+	 * @return the learning rate for the update (not used for ADAGRAD)
+	 */
+	private double rateAt(int t) {
+		if (rateSchedule == DECAYING_RATE) {
+			return eta / (1 + decay * t);
+		}
+		return eta;
+	}
+
+	/**
+	 * @param squaredGradient the summed squared gradients of a weight
+	 * @return the ADAGRAD learning rate for the weight
+	 */
+	private double adaGradRate(double squaredGradient) {
+		return eta / (Math.sqrt(squaredGradient) + ADAGRAD_EPSILON);
+	}
+
+	/**
+	 * Update the weights and bias for one example: w_j += rate * gradient * x_j
+	 * for the example's features and b += rate * gradient, along with one step of
+	 * regularization.
+	 * 
+	 * @param features the example's feature indices
+	 * @param values   the example's feature values
+	 * @param gradient y * (derivative of the loss)
+	 */
+	private void update(int[] features, double[] values, double gradient) {
+		update(features, values, features.length, gradient, gradient);
+	}
+
+	/**
+	 * Update the weights and bias: w_j += rate * gradient * x_j for the first n
+	 * features and b += rate * biasGradient, along with one step of
+	 * regularization.
+	 * 
+	 * L2 regularization shrinks every weight by (1 - rate * lambda), which we do
+	 * by shrinking weightScale instead of touching every weight. L1
+	 * regularization moves every weight rate * lambda towards 0 without crossing
+	 * it; for weights not being updated that is deferred until the next time they
+	 * are used (see applyPendingL1).
+	 * 
+	 * @param features     feature indices
+	 * @param values       feature values
+	 * @param n            how many of the features to update
+	 * @param gradient     the gradient per unit of feature value
+	 * @param biasGradient the gradient for the bias
+	 */
+	private void update(int[] features, double[] values, int n, double gradient, double biasGradient) {
+		if (rateSchedule == ADAGRAD) {
+			adaGradUpdate(features, values, n, gradient, biasGradient);
+			step++;
+			return;
+		}
+
+		double rate = currentRate();
+		double delta = rate * gradient;
+		double biasDelta = rate * biasGradient;
 
-		// calculate regularization and update the weights/bias.
 		switch (regType) {
 		case NO_REGULARIZATION:
-			// If no regularization, regularization function is just 0, i.e. just (deep)
-			// copy the weightsInProgress into the actual weights
-			for (Integer feature : features) {
-				weights.put(feature, weightsInProgress.get(feature));
+			for (int i = 0; i < n; i++) {
+				if (features[i] < weights.length) {
+					weights[features[i]] += delta * values[i];
+				}
 			}
-			b = bInProgress; // also copy the bias
+			b += biasDelta;
 			break;
 		case L1_REGULARIZATION:
-			// For L1, our weights are
-			for (Integer feature : features) {
-				weights.put(feature, weightsInProgress.get(feature) - eta * lambda * sign(weights.get(feature)));
+			// weights being updated get any pending penalty and this update's penalty
+			// now, clipped at 0 just like the deferred ones, and then the gradient
+			double penalty = rate * lambda;
+			for (int i = 0; i < n; i++) {
+				int featureIndex = features[i];
+				if (featureIndex < weights.length) {
+					double pending = totalPenalty + penalty - appliedPenalty[featureIndex];
+					weights[featureIndex] = shrink(weights[featureIndex], pending) + delta * values[i];
+					appliedPenalty[featureIndex] = totalPenalty + penalty;
+				}
 			}
-			b = bInProgress - eta * lambda * sign(b);
+			b = shrink(b, penalty) + biasDelta;
+			totalPenalty += penalty;
 			break;
 		case L2_REGULARIZATION:
-			for (Integer feature : features) {
-				weights.put(feature, weightsInProgress.get(feature) - eta * lambda * weights.get(feature));
+			double shrinkage = 1 - rate * lambda;
+			if (shrinkage == 0) {
+				// everything is regularized all the way to 0
+				Arrays.fill(weights, 0);
+				weightScale = 1;
+			} else {
+				weightScale *= shrinkage;
+			}
+
+			// w_j = shrinkage * w_j + delta * x_j, in terms of the scaled weights
+			double scaledDelta = delta / weightScale;
+			for (int i = 0; i < n; i++) {
+				if (features[i] < weights.length) {
+					weights[features[i]] += scaledDelta * values[i];
+				}
+			}
+			b = b + biasDelta - rate * lambda * b;
+
+			// keep the scale from underflowing
+			if (Math.abs(weightScale) < MIN_WEIGHT_SCALE) {
+				flushRegularization();
 			}
-			b = bInProgress - eta * lambda * b;
 			break;
 		}
 
+		step++;
+	}
+
+	/**
+	 * ADAGRAD version of update. Every weight has its own rate, so there's no
+	 * common scale or penalty to defer: the weights being updated are regularized
+	 * with their own rate and the rest are left alone.
+	 */
+	private void adaGradUpdate(int[] features, double[] values, int n, double gradient, double biasGradient) {
+		for (int i = 0; i < n; i++) {
+			int featureIndex = features[i];
+			if (featureIndex < weights.length) {
+				double g = gradient * values[i];
+				squaredGradients[featureIndex] += g * g;
+				double rate = adaGradRate(squaredGradients[featureIndex]);
+
+				double w_j = weights[featureIndex];
+				weights[featureIndex] = w_j + rate * g - rate * lambda * regularizationGradient(w_j);
+			}
+		}
+
+		biasSquaredGradient += biasGradient * biasGradient;
+		double rate = adaGradRate(biasSquaredGradient);
+		b = b + rate * biasGradient - rate * lambda * regularizationGradient(b);
+	}
+
+	/**
+	 * Apply the L1 penalty from the updates since each of these features was last
+	 * brought up to date.
+	 * 
+	 * @param features
+	 */
+	private void applyPendingL1(int[] features) {
+		for (int featureIndex : features) {
+			if (featureIndex < weights.length) {
+				double pending = totalPenalty - appliedPenalty[featureIndex];
+				if (pending > 0) {
+					weights[featureIndex] = shrink(weights[featureIndex], pending);
+					appliedPenalty[featureIndex] = totalPenalty;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fold the scale factor and any pending L1 penalties into the weights, so that
+	 * weights holds the actual weights.
+	 */
+	private void flushRegularization() {
+		for (int j = 0; j < weights.length; j++) {
+			weights[j] = getWeight(j);
+			appliedPenalty[j] = totalPenalty;
+		}
+		weightScale = 1;
+	}
+
+	/**
+	 * Move w towards 0 by amount, without crossing 0
+	 * 
+	 * @param w
+	 * @param amount
+	 * @return
+	 */
+	private static double shrink(double w, double amount) {
+		if (w > 0) {
+			return Math.max(0, w - amount);
+		} else {
+			return Math.min(0, w + amount);
+		}
 	}
 
 	/**
@@ -380,6 +1191,42 @@ public class GradientDescentClassifier implements Classifier {
 		return (w < 0) ? -1 : ((w > 0) ? 1 : 0);
 	}
 
+	/**
+	 * Derivative of the loss function wrt y_i * yPrime (negated), i.e. how much an
+	 * example should move the weights
+	 * 
+	 * @param y_i
+	 * @param yPrime
+	 * @return
+	 */
+	private double lossDerivative(double y_i, double yPrime) {
+		switch (lossType) {
+		case EXPONENTIAL_LOSS:
+			return Math.exp(-y_i * yPrime);
+		case HINGE_LOSS:
+			return (y_i * yPrime < 1) ? 1 : 0;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Gradient of the regularizer for a weight w, i.e. sign(w) for L1 and w for L2
+	 * 
+	 * @param w
+	 * @return
+	 */
+	private double regularizationGradient(double w) {
+		switch (regType) {
+		case L1_REGULARIZATION:
+			return sign(w);
+		case L2_REGULARIZATION:
+			return w;
+		default:
+			return 0;
+		}
+	}
+
 	/**
 	 * Calculates loss function for a given y_i (label) and yPrime (w*x+b), i.e. for
 	 * a given example
@@ -405,13 +1252,87 @@ public class GradientDescentClassifier implements Classifier {
 	public String toString() {
 		StringBuffer buffer = new StringBuffer();
 
-		ArrayList<Integer> temp = new ArrayList<Integer>(weights.keySet());
-		Collections.sort(temp);
-
-		for (Integer index : temp) {
-			buffer.append(index + ":" + weights.get(index) + " ");
+		for (int index : featureIndices) {
+			buffer.append(index + ":" + getWeight(index) + " ");
 		}
 
 		return buffer.substring(0, buffer.length() - 1);
 	}
+
+	/**
+	 * Sparse accumulator for the gradient over a chunk of a mini-batch. Sums are
+	 * kept in a dense array along with the list of features that have been added
+	 * to, so clearing and reading it only costs the number of features touched.
+	 */
+	private static class BatchAccumulator {
+		private double[] sums;
+		private int[] features;
+		private double[] gathered;
+		private boolean[] touched;
+		private int size = 0;
+		private double biasSum = 0;
+		private double loss = 0;
+
+		public BatchAccumulator(int numFeatures) {
+			sums = new double[numFeatures];
+			features = new int[numFeatures];
+			gathered = new double[numFeatures];
+			touched = new boolean[numFeatures];
+		}
+
+		/**
+		 * @return the sums for the touched features, in the same order as features
+		 */
+		public double[] gatherSums() {
+			for (int i = 0; i < size; i++) {
+				gathered[i] = sums[features[i]];
+			}
+			return gathered;
+		}
+
+		/**
+		 * Reset the accumulator for a new batch
+		 */
+		public void clear() {
+			for (int i = 0; i < size; i++) {
+				sums[features[i]] = 0;
+				touched[features[i]] = false;
+			}
+			size = 0;
+			biasSum = 0;
+			loss = 0;
+		}
+
+		/**
+		 * Add delta * x for the example with these features to the gradient
+		 */
+		public void add(int[] exampleFeatures, double[] values, double delta) {
+			for (int i = 0; i < exampleFeatures.length; i++) {
+				add(exampleFeatures[i], delta * values[i]);
+			}
+			biasSum += delta;
+		}
+
+		/**
+		 * Add everything in other into this accumulator
+		 */
+		public void add(BatchAccumulator other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.features[i], other.sums[other.features[i]]);
+			}
+			biasSum += other.biasSum;
+			loss += other.loss;
+		}
+
+		private void add(int featureIndex, double value) {
+			if (featureIndex >= sums.length) {
+				return;
+			}
+			if (!touched[featureIndex]) {
+				touched[featureIndex] = true;
+				features[size++] = featureIndex;
+			}
+			sums[featureIndex] += value;
+		}
+	}
 }
@@ -0,0 +1,412 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * Hoeffding tree (Very Fast Decision Tree, Domingos and Hulten, 2000): a
+ * decision tree learned from a stream of examples, one example at a time.
+ *
+ * Each leaf only keeps counts: how many of its examples have each label, and
+ * for each feature, how many examples of each label are non-zero for it. Every
+ * gracePeriod examples, a leaf checks whether splitting on some feature (zero
+ * vs. non-zero, like DecisionTreeClassifier) is better than all the other
+ * choices, including not splitting, by more than the Hoeffding bound. If it is,
+ * the leaf splits and its children start counting the examples that reach them.
+ * The children's predictions start from the label counts their parent saw for
+ * their side of the split.
+ * Once the tree has maxLeaves leaves, the leaves throw away their feature
+ * counts and stop splitting, so the memory used is bounded.
+ */
+public class HoeffdingTreeClassifier implements Classifier {
+	private int gracePeriod = 200;
+	private double splitConfidence = 1e-7;
+	private double tieThreshold = 0.05;
+	private int maxLeaves = 1000;
+
+	private Node root;
+	private int numLeaves;
+
+	// the labels seen so far, in the order they were seen, and their positions
+	private ArrayList<Double> labels;
+	private HashMap<Double, Integer> labelIndices;
+
+	// for printing the tree
+	private HashMap<Integer, String> featureMap;
+
+	/**
+	 * Set how many examples a leaf sees between checks for a split
+	 *
+	 * @param gracePeriod
+	 */
+	public void setGracePeriod(int gracePeriod) {
+		this.gracePeriod = gracePeriod;
+	}
+
+	/**
+	 * Set the allowed probability that a split is not the one that would be
+	 * chosen with infinite data (delta in the Hoeffding bound)
+	 *
+	 * @param splitConfidence
+	 */
+	public void setSplitConfidence(double splitConfidence) {
+		this.splitConfidence = splitConfidence;
+	}
+
+	/**
+	 * Set how small the Hoeffding bound has to get before a leaf splits on the
+	 * best feature even though the second best is too close to tell apart
+	 *
+	 * @param tieThreshold
+	 */
+	public void setTieThreshold(double tieThreshold) {
+		this.tieThreshold = tieThreshold;
+	}
+
+	/**
+	 * Set the most leaves the tree can grow
+	 *
+	 * @param maxLeaves
+	 */
+	public void setMaxLeaves(int maxLeaves) {
+		this.maxLeaves = maxLeaves;
+	}
+
+	@Override
+	public void train(DataSet data) {
+		train(data.getData().iterator());
+		featureMap = data.getFeatureMap();
+	}
+
+	/**
+	 * Learn a new tree from the examples, reading them one at a time, e.g. from
+	 * a TextDataReader
+	 *
+	 * @param examples
+	 */
+	public void train(Iterator<Example> examples) {
+		root = new Node(new int[0], new int[0]);
+		numLeaves = 1;
+		if (numLeaves >= maxLeaves) {
+			deactivate(root);
+		}
+		labels = new ArrayList<Double>();
+		labelIndices = new HashMap<Double, Integer>();
+		featureMap = null;
+
+		while (examples.hasNext()) {
+			update(examples.next());
+		}
+	}
+
+	/**
+	 * Add one more example to the tree learned so far
+	 *
+	 * @param example
+	 */
+	public void update(Example example) {
+		if (root == null) {
+			train(new ArrayList<Example>().iterator());
+		}
+
+		Integer label = labelIndices.get(example.getLabel());
+		if (label == null) {
+			label = labels.size();
+			labels.add(example.getLabel());
+			labelIndices.put(example.getLabel(), label);
+		}
+
+		Node leaf = findLeaf(example);
+		leaf.labelCounts = increment(leaf.labelCounts, label, 1);
+
+		if (leaf.nonZeroCounts == null) {
+			return;
+		}
+		leaf.seenCounts = increment(leaf.seenCounts, label, 1);
+
+		int[] indices = example.getSparseIndices();
+		double[] values = example.getSparseValues();
+		for (int i = 0; i < indices.length; i++) {
+			if (values[i] != DecisionTreeNode.LEFT_BRANCH) {
+				leaf.nonZeroCounts.put(indices[i], increment(leaf.nonZeroCounts.get(indices[i]), label, 1));
+			}
+		}
+
+		if (++leaf.seenSinceCheck >= gracePeriod) {
+			leaf.seenSinceCheck = 0;
+			trySplit(leaf);
+		}
+	}
+
+	/**
+	 * Split the leaf on its best feature if the Hoeffding bound says it's better
+	 * than the next best choice
+	 */
+	private void trySplit(Node leaf) {
+		int n = total(leaf.seenCounts);
+		if (numNonZero(leaf.seenCounts) < 2) {
+			return;
+		}
+
+		double parentEntropy = entropy(leaf.seenCounts, n);
+		int bestFeature = -1;
+		double bestGain = 0;
+		// not splitting has gain 0
+		double secondGain = 0;
+
+		for (Map.Entry<Integer, int[]> entry : leaf.nonZeroCounts.entrySet()) {
+			int feature = entry.getKey();
+			if (contains(leaf.pathFeatures, feature)) {
+				continue;
+			}
+
+			double gain = parentEntropy - splitEntropy(leaf.seenCounts, entry.getValue(), n);
+			if (gain > bestGain || (gain == bestGain && bestFeature != -1 && feature < bestFeature)) {
+				secondGain = bestGain;
+				bestGain = gain;
+				bestFeature = feature;
+			} else if (gain > secondGain) {
+				secondGain = gain;
+			}
+		}
+
+		if (bestFeature == -1) {
+			return;
+		}
+
+		double range = Math.log(Math.max(2, labels.size())) / Math.log(2);
+		double bound = Math.sqrt(range * range * Math.log(1 / splitConfidence) / (2.0 * n));
+
+		if (bestGain - secondGain > bound || bound < tieThreshold) {
+			split(leaf, bestFeature);
+		}
+	}
+
+	/**
+	 * Turn the leaf into an internal node splitting on feature. The children
+	 * start with the label counts the leaf saw for their side of the split.
+	 */
+	private void split(Node leaf, int feature) {
+		int[] nonZero = leaf.nonZeroCounts.get(feature);
+		int[] zero = new int[leaf.seenCounts.length];
+		for (int l = 0; l < zero.length; l++) {
+			zero[l] = leaf.seenCounts[l] - (l < nonZero.length ? nonZero[l] : 0);
+		}
+
+		int[] pathFeatures = Arrays.copyOf(leaf.pathFeatures, leaf.pathFeatures.length + 1);
+		pathFeatures[leaf.pathFeatures.length] = feature;
+
+		leaf.feature = feature;
+		leaf.left = new Node(zero, pathFeatures);
+		leaf.right = new Node(nonZero.clone(), pathFeatures);
+		leaf.labelCounts = null;
+		leaf.seenCounts = null;
+		leaf.nonZeroCounts = null;
+		numLeaves++;
+
+		if (numLeaves >= maxLeaves) {
+			deactivate(root);
+		}
+	}
+
+	/**
+	 * Throw away the feature counts of all the leaves under node so they stop
+	 * splitting
+	 */
+	private static void deactivate(Node node) {
+		if (node.isLeaf()) {
+			node.seenCounts = null;
+			node.nonZeroCounts = null;
+		} else {
+			deactivate(node.left);
+			deactivate(node.right);
+		}
+	}
+
+	/**
+	 * @return the leaf the example falls into
+	 */
+	private Node findLeaf(Example example) {
+		Node node = root;
+		while (!node.isLeaf()) {
+			node = example.getFeature(node.feature) == DecisionTreeNode.LEFT_BRANCH ? node.left : node.right;
+		}
+		return node;
+	}
+
+	@Override
+	public double classify(Example example) {
+		return predict(findLeaf(example).labelCounts)[0];
+	}
+
+	/**
+	 * The fraction of the examples at the example's leaf with the predicted label
+	 */
+	@Override
+	public double confidence(Example example) {
+		return predict(findLeaf(example).labelCounts)[1];
+	}
+
+	/**
+	 * A snapshot of the tree learned so far, with each leaf's prediction fixed;
+	 * the model doesn't see the examples the tree is updated with afterwards
+	 */
+	@Override
+	public DecisionTreeModel getModel() {
+		if (root == null) {
+			throw new RuntimeException("Tried to get the model before training");
+		}
+
+		return new DecisionTreeModel(toDecisionTreeNode(root));
+	}
+
+	/**
+	 * @param labelCounts
+	 * @return {the most common label (ties going to the smaller label), the
+	 *         fraction of the examples with it}
+	 */
+	private double[] predict(int[] labelCounts) {
+		int best = -1;
+		for (int l = 0; l < labelCounts.length; l++) {
+			if (best == -1 || labelCounts[l] > labelCounts[best]
+					|| (labelCounts[l] == labelCounts[best] && labels.get(l) < labels.get(best))) {
+				best = l;
+			}
+		}
+
+		int n = total(labelCounts);
+		if (best == -1 || n == 0) {
+			// nothing has reached this leaf yet
+			return new double[] { labels.isEmpty() ? 0.0 : labels.get(0), 0.0 };
+		}
+		return new double[] { labels.get(best), labelCounts[best] / (double) n };
+	}
+
+	/**
+	 * @return the entropy (in bits) of the split's two sides, weighted by their
+	 *         sizes
+	 */
+	private static double splitEntropy(int[] labelCounts, int[] nonZeroCounts, int n) {
+		int[] zeroCounts = new int[labelCounts.length];
+		for (int l = 0; l < labelCounts.length; l++) {
+			zeroCounts[l] = labelCounts[l] - (l < nonZeroCounts.length ? nonZeroCounts[l] : 0);
+		}
+
+		int nonZero = total(nonZeroCounts);
+		return ((n - nonZero) * entropy(zeroCounts, n - nonZero) + nonZero * entropy(nonZeroCounts, nonZero)) / n;
+	}
+
+	/**
+	 * @return the entropy (in bits) of the label distribution
+	 */
+	private static double entropy(int[] counts, int n) {
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				double p = count / (double) n;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	private static int total(int[] counts) {
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	private static int numNonZero(int[] counts) {
+		int numNonZero = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				numNonZero++;
+			}
+		}
+		return numNonZero;
+	}
+
+	private static boolean contains(int[] features, int feature) {
+		for (int f : features) {
+			if (f == feature) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add amount to counts[l], growing counts if it doesn't have room for l (the
+	 * labels are only known as they're seen)
+	 *
+	 * @param counts the counts, or null for none yet
+	 * @return counts, or the grown copy of it
+	 */
+	private static int[] increment(int[] counts, int l, int amount) {
+		if (counts == null) {
+			counts = new int[l + 1];
+		} else if (l >= counts.length) {
+			counts = Arrays.copyOf(counts, l + 1);
+		}
+		counts[l] += amount;
+		return counts;
+	}
+
+	public String toString() {
+		if (root == null) {
+			return "";
+		}
+
+		DecisionTreeNode tree = toDecisionTreeNode(root);
+		return featureMap == null ? tree.treeString() : tree.treeString(featureMap);
+	}
+
+	private DecisionTreeNode toDecisionTreeNode(Node node) {
+		if (node.isLeaf()) {
+			double[] prediction = predict(node.labelCounts);
+			return new DecisionTreeNode(prediction[0], prediction[1]);
+		}
+
+		DecisionTreeNode tree = new DecisionTreeNode(node.feature);
+		tree.setLeft(toDecisionTreeNode(node.left));
+		tree.setRight(toDecisionTreeNode(node.right));
+		return tree;
+	}
+
+	/**
+	 * A node of the tree. Internal nodes split on feature; leaves have their
+	 * label counts for predicting and, while they can still split, the label and
+	 * feature counts of the examples that reached them.
+	 */
+	private static class Node {
+		public int feature = -1;
+		public Node left;
+		public Node right;
+
+		public int[] labelCounts;
+		public int[] seenCounts = new int[0];
+		// feature index -> number of examples of each label non-zero for it
+		public HashMap<Integer, int[]> nonZeroCounts = new HashMap<Integer, int[]>();
+		public int seenSinceCheck = 0;
+
+		// the features split on above this node
+		public int[] pathFeatures;
+
+		public Node(int[] labelCounts, int[] pathFeatures) {
+			this.labelCounts = labelCounts;
+			this.pathFeatures = pathFeatures;
+		}
+
+		public boolean isLeaf() {
+			return feature == -1;
+		}
+	}
+}
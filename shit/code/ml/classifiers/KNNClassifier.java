@@ -1,95 +1,1134 @@
 package ml.classifiers;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import ml.data.DataSet;
 import ml.data.Example;
-import ml.utils.HashMapCounter;
 
 public class KNNClassifier implements Classifier {
-	private DataSet train;
+	// constants for the different distance measures
+	public static final int EUCLIDEAN = 0;
+	public static final int COSINE = 1;
+	
+	// constants for the different ways of finding the neighbors
+	public static final int BRUTE_FORCE = 0;
+	public static final int INVERTED_INDEX = 1;
+	public static final int LSH = 2;
+	public static final int KD_TREE = 3;
+	
+	// KD_TREE falls back to BRUTE_FORCE above this many features, where a
+	// KD-tree can't prune much and the dense rows would take too much memory
+	public static final int KD_TREE_MAX_DIMENSION = 32;
+	
 	private int k = 5;
+	private int distanceType = EUCLIDEAN;
+	private int searchMethod = BRUTE_FORCE;
+	
+	// the training examples as sorted sparse arrays, along with their squared norms
+	private int[][] trainIndices;
+	private double[][] trainValues;
+	private double[] trainNorms;
+	private double[] trainLabels;
+	
+	// the result of the last search, so classify and confidence on the same
+	// example only search once
+	private volatile SearchResult lastSearch = null;
+	
+	// which feature indices occur in the training data
+	private boolean[] trainFeatures;
+	
+	/**
+	 * inverted index: for each feature index, the training examples it is
+	 * non-zero in (in increasing order) and its values in them
+	 */
+	private int[][] postingExamples;
+	private double[][] postingValues;
+	
+	// the training examples in increasing order of norm (ties by index)
+	private int[] normOrder;
+	
+	// locality sensitive hashing index for approximate search
+	private LSHIndex lshIndex;
+	private int hashTables = 10;
+	private int hashBits = 12;
+	private long hashSeed = 0;
+	
+	// KD-tree for exact search on low dimensional data
+	private KDTree kdTree;
+	
+	// per thread accumulators for searching the indexes
+	private ThreadLocal<Accumulator> accumulators;
 	
 	@Override
 	public void train(DataSet data) {
-		train = data;
-		// done!
+		int maxFeature = -1;
+		for( Integer featureNum: data.getAllFeatureIndices() ){
+			maxFeature = Math.max(maxFeature, featureNum);
+		}
+		
+		trainFeatures = new boolean[maxFeature+1];
+		for( Integer featureNum: data.getAllFeatureIndices() ){
+			trainFeatures[featureNum] = true;
+		}
+		
+		int n = data.getData().size();
+		trainIndices = new int[n][];
+		trainValues = new double[n][];
+		trainNorms = new double[n];
+		trainLabels = new double[n];
+		lastSearch = null;
+		
+		for( int i = 0; i < n; i++ ){
+			Example e = data.getData().get(i);
+			trainIndices[i] = e.getSparseIndices();
+			trainValues[i] = e.getSparseValues();
+			trainNorms[i] = squaredNorm(trainValues[i]);
+			trainLabels[i] = e.getLabel();
+		}
+		
+		accumulators = ThreadLocal.withInitial(() -> new Accumulator(n));
+		
+		postingExamples = null;
+		postingValues = null;
+		lshIndex = null;
+		kdTree = null;
+		buildSearchIndex();
+	}
+	
+	/**
+	 * A classifier that shares the trained classifier's training arrays and
+	 * search indexes, which are never changed once they're built, with a copy
+	 * of its settings
+	 * 
+	 * @param trained
+	 */
+	private KNNClassifier(KNNClassifier trained){
+		k = trained.k;
+		distanceType = trained.distanceType;
+		searchMethod = trained.searchMethod;
+		hashTables = trained.hashTables;
+		hashBits = trained.hashBits;
+		hashSeed = trained.hashSeed;
+		
+		trainIndices = trained.trainIndices;
+		trainValues = trained.trainValues;
+		trainNorms = trained.trainNorms;
+		trainLabels = trained.trainLabels;
+		trainFeatures = trained.trainFeatures;
+		postingExamples = trained.postingExamples;
+		postingValues = trained.postingValues;
+		normOrder = trained.normOrder;
+		lshIndex = trained.lshIndex;
+		kdTree = trained.kdTree;
+		
+		int n = trainIndices.length;
+		accumulators = ThreadLocal.withInitial(() -> new Accumulator(n));
+	}
+	
+	public KNNClassifier(){
+	}
+	
+	/**
+	 * Build whatever index the search method needs, if it isn't built yet
+	 */
+	private void buildSearchIndex(){
+		if( trainIndices == null ){
+			return;
+		}
+		
+		if( searchMethod == INVERTED_INDEX && postingExamples == null ){
+			buildIndex();
+		}else if( searchMethod == LSH && lshIndex == null ){
+			lshIndex = new LSHIndex(trainIndices, trainValues, hashTables, hashBits, hashSeed);
+		}else if( searchMethod == KD_TREE && kdTree == null ){
+			kdTree = new KDTree(trainFeatures, trainIndices, trainValues);
+		}
+	}
+	
+	/**
+	 * Build the inverted index over the training examples
+	 */
+	private void buildIndex(){
+		int n = trainIndices.length;
+		
+		int[] counts = new int[trainFeatures.length];
+		for( int i = 0; i < n; i++ ){
+			for( int featureNum: trainIndices[i] ){
+				counts[featureNum]++;
+			}
+		}
+		
+		int[][] examples = new int[trainFeatures.length][];
+		double[][] values = new double[trainFeatures.length][];
+		for( int f = 0; f < counts.length; f++ ){
+			examples[f] = new int[counts[f]];
+			values[f] = new double[counts[f]];
+			counts[f] = 0;
+		}
+		
+		for( int i = 0; i < n; i++ ){
+			for( int j = 0; j < trainIndices[i].length; j++ ){
+				int featureNum = trainIndices[i][j];
+				int position = counts[featureNum]++;
+				examples[featureNum][position] = i;
+				values[featureNum][position] = trainValues[i][j];
+			}
+		}
+		
+		Integer[] order = new Integer[n];
+		for( int i = 0; i < n; i++ ){
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> Double.compare(trainNorms[i1], trainNorms[i2]));
+		
+		normOrder = new int[n];
+		for( int i = 0; i < n; i++ ){
+			normOrder[i] = order[i];
+		}
+		
+		postingExamples = examples;
+		postingValues = values;
+	}
+	
+	/**
+	 * Set how the neighbors are found.  BRUTE_FORCE (the default) computes the
+	 * distance to every training example.  INVERTED_INDEX only computes dot
+	 * products with the training examples that share a feature with the query;
+	 * the neighbors are the same, but it's much faster on sparse data like text.
+	 * LSH only computes distances to the training examples that hash to the same
+	 * bucket as the query in some table, which is approximate but can be orders
+	 * of magnitude faster on large training sets (see measureRecall).  The
+	 * hashes group vectors by angle, so LSH suits COSINE distance; with
+	 * EUCLIDEAN its recall depends on the examples' norms being similar.
+	 * KD_TREE finds the same neighbors as BRUTE_FORCE in about logarithmic time
+	 * on data with few features, like the numeric CSV data sets.  It only
+	 * applies to EUCLIDEAN distance and at most KD_TREE_MAX_DIMENSION features,
+	 * and otherwise searches by brute force.
+	 * 
+	 * @param searchMethod BRUTE_FORCE, INVERTED_INDEX, LSH or KD_TREE
+	 */
+	public void setSearchMethod(int searchMethod){
+		this.searchMethod = searchMethod;
+		lastSearch = null;
+		buildSearchIndex();
+	}
+	
+	/**
+	 * Set the shape of the LSH index.  More tables find more of the true
+	 * neighbors; more bits per table make the buckets smaller (and faster to
+	 * search) but miss more neighbors.
+	 * 
+	 * @param tables number of hash tables
+	 * @param bits number of random hyperplanes per table, at most LSHIndex.MAX_BITS
+	 * @param seed seed for the random hyperplanes
+	 */
+	public void setHashing(int tables, int bits, long seed){
+		hashTables = tables;
+		hashBits = bits;
+		hashSeed = seed;
+		lshIndex = null;
+		lastSearch = null;
+		
+		if( searchMethod == LSH ){
+			buildSearchIndex();
+		}
+	}
+	
+	/**
+	 * Measure how many of the true k nearest neighbors the current search method
+	 * finds, i.e. the number of neighbors in common with a brute force search,
+	 * over the number of neighbors, summed over the queries.
+	 * 
+	 * @param queries
+	 * @return the recall, between 0 and 1
+	 */
+	public double measureRecall(DataSet queries){
+		long found = 0;
+		long total = 0;
+		
+		for( Example example: queries.getData() ){
+			NeighborHeap exact = findBruteForceNeighbors(example);
+			NeighborHeap approximate = findNeighbors(example);
+			
+			for( int i = 0; i < exact.size; i++ ){
+				for( int j = 0; j < approximate.size; j++ ){
+					if( exact.indices[i] == approximate.indices[j] ){
+						found++;
+						break;
+					}
+				}
+			}
+			total += exact.size;
+		}
+		
+		return total == 0 ? 1.0 : found/(double)total;
+	}
+	
+	/**
+	 * Set the distance measure to use
+	 * 
+	 * @param distanceType EUCLIDEAN or COSINE
+	 */
+	public void setDistance(int distanceType){
+		this.distanceType = distanceType;
+		lastSearch = null;
 	}
 
 	@Override
 	public double classify(Example example) {
-		//PriorityQueue<Double> q = new PriorityQueue<Double>(k);
 		return getLabel(example)[0];
 	}
 	
+	/**
+	 * The fraction of the k nearest neighbors that have the predicted label
+	 */
 	@Override
 	public double confidence(Example example) {
-		return getLabel(example)[0];
+		return getLabel(example)[1];
 	}
 	
+	/**
+	 * Get the majority label of the k nearest neighbors and the fraction of the
+	 * neighbors with that label
+	 * 
+	 * @param example
+	 * @return {label, vote share}
+	 */
 	private double[] getLabel(Example example){
-		ArrayList<ScoredExample> distances = new ArrayList<ScoredExample>();
-		
-		for( Example e: train.getData() ){
-			distances.add(new ScoredExample(e, getDistance(example, e)));
+		SearchResult last = lastSearch;
+		// the sparse arrays are rebuilt whenever the example changes
+		if( last != null && last.example == example && last.indices == example.getSparseIndices() ){
+			return last.result;
 		}
 		
-		Collections.sort(distances);
+		double[] temp = vote(findNeighbors(example));
+		
+		lastSearch = new SearchResult(example, temp);
+		return temp;
+	}
+	
+	/**
+	 * The training examples (as arrays rather than the DataSet) and the search
+	 * index for the current search method, with the current settings.  Changing
+	 * the settings or training again afterwards doesn't change the model.
+	 */
+	@Override
+	public Model getModel(){
+		return new KNNModel(new KNNClassifier(this));
+	}
+	
+	/**
+	 * Classify all the examples at once.  The queries are split into
+	 * blocks that are searched in parallel, and for brute force search each
+	 * block is compared against the training examples a block at a time, so the
+	 * training examples being compared against stay in cache for the whole
+	 * query block.
+	 * 
+	 * @param examples
+	 * @return {predicted labels, confidences (vote shares)}, indexed like
+	 * examples
+	 */
+	@Override
+	public double[][] classify(List<Example> examples){
+		final double[][] results = new double[2][examples.size()];
+		
+		ForkJoinPool.commonPool().invoke(new BatchSearch(examples, results, 0, examples.size()));
+		return results;
+	}
+	
+	/**
+	 * Classifies a range of the queries, splitting it in half until it is one
+	 * query block
+	 */
+	private class BatchSearch extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		
+		private static final int QUERY_BLOCK = 32;
+		private static final int TRAIN_BLOCK = 256;
+		
+		private List<Example> examples;
+		private double[][] results;
+		private int start;
+		private int end;
+		
+		public BatchSearch(List<Example> examples, double[][] results, int start, int end){
+			this.examples = examples;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+		}
 		
-		HashMapCounter<Double> counter = new HashMapCounter<Double>();
+		@Override
+		protected void compute(){
+			if( end - start > QUERY_BLOCK ){
+				int mid = (start + end) >>> 1;
+				invokeAll(new BatchSearch(examples, results, start, mid), new BatchSearch(examples, results, mid, end));
+				return;
+			}
+			
+			if( searchMethod != BRUTE_FORCE ){
+				// vote before the next search, since the KD-tree reuses its heap
+				for( int q = start; q < end; q++ ){
+					setResult(q, findNeighbors(examples.get(q)));
+				}
+				return;
+			}
+			
+			NeighborHeap[] neighbors = new NeighborHeap[end - start];
+			Query[] queries = new Query[end - start];
+			for( int q = 0; q < queries.length; q++ ){
+				queries[q] = new Query(examples.get(start + q));
+				neighbors[q] = new NeighborHeap(Math.min(k, trainIndices.length));
+			}
+			
+			for( int blockStart = 0; blockStart < trainIndices.length; blockStart += TRAIN_BLOCK ){
+				int blockEnd = Math.min(blockStart + TRAIN_BLOCK, trainIndices.length);
+				for( int q = 0; q < queries.length; q++ ){
+					for( int i = blockStart; i < blockEnd; i++ ){
+						neighbors[q].offer(getDistance(queries[q], i), i);
+					}
+				}
+			}
+			
+			for( int q = 0; q < neighbors.length; q++ ){
+				setResult(start + q, neighbors[q]);
+			}
+		}
 		
-		for( int i = 0; i < k; i++ ){
-			counter.increment(distances.get(i).e.getLabel());
+		private void setResult(int q, NeighborHeap neighbors){
+			double[] result = vote(neighbors);
+			results[0][q] = result[0];
+			results[1][q] = result[1];
 		}
+	}
+	
+	/**
+	 * Get the majority label of the neighbors and the fraction of the neighbors
+	 * with that label.  Ties go to the label with the closest neighbor.
+	 * 
+	 * @param neighbors
+	 * @return {label, vote share}
+	 */
+	private double[] vote(NeighborHeap neighbors){
+		// closest first, so the labels are counted in order of their closest neighbor
+		neighbors.sort();
 		
-		double maxCount = -1;
+		int maxCount = 0;
 		double maxPrediction = 0.0;
 		
-		for( Double d: counter.keySet() ){
-			int count = counter.get(d);
+		// k is small, so count each label in place rather than in a map
+		for( int i = 0; i < neighbors.size; i++ ){
+			double label = trainLabels[neighbors.indices[i]];
+			
+			boolean counted = false;
+			for( int j = 0; j < i && !counted; j++ ){
+				counted = trainLabels[neighbors.indices[j]] == label;
+			}
+			if( counted ){
+				continue;
+			}
+			
+			int count = 1;
+			for( int j = i+1; j < neighbors.size; j++ ){
+				if( trainLabels[neighbors.indices[j]] == label ){
+					count++;
+				}
+			}
 			
 			if( count > maxCount ){
 				maxCount = count;
-				maxPrediction = d;
+				maxPrediction = label;
 			}
 		}
 		
 		double[] temp = new double[2];
 		temp[0] = maxPrediction;
-		temp[1] = maxCount/(double)k;
+		temp[1] = neighbors.size == 0 ? 0.0 : maxCount/(double)neighbors.size;
 		return temp;
 	}
 	
-	private double getDistance(Example e1, Example e2){
-		double dist = 0.0;
+	/**
+	 * Find the k training examples closest to example with the current search
+	 * method
+	 * 
+	 * @param example
+	 * @return the neighbors, which the KD-tree reuses for the thread's next
+	 * search
+	 */
+	private NeighborHeap findNeighbors(Example example){
+		if( searchMethod == INVERTED_INDEX ){
+			return findIndexedNeighbors(example);
+		}else if( searchMethod == LSH ){
+			return findHashedNeighbors(example);
+		}else if( searchMethod == KD_TREE && kdTree.rows != null && distanceType == EUCLIDEAN ){
+			return kdTree.findNeighbors(this, example);
+		}else{
+			return findBruteForceNeighbors(example);
+		}
+	}
+	
+	/**
+	 * Find the k training examples closest to example, by scanning all of them
+	 * 
+	 * @param example
+	 * @return the neighbors
+	 */
+	private NeighborHeap findBruteForceNeighbors(Example example){
+		NeighborHeap neighbors = new NeighborHeap(Math.min(k, trainIndices.length));
+		
+		Query query = new Query(example);
+		for( int i = 0; i < trainIndices.length; i++ ){
+			neighbors.offer(getDistance(query, i), i);
+		}
+		
+		return neighbors;
+	}
+	
+	/**
+	 * Find the k training examples closest to example using the inverted index.
+	 * The dot products with the examples that share a feature with the query are
+	 * accumulated one query feature at a time.  Every other example has a dot
+	 * product of 0, so its distance only depends on its norm, and only the ones
+	 * with the smallest norms (or indices, for cosine) need to be looked at.
+	 * 
+	 * @param example
+	 * @return the neighbors
+	 */
+	private NeighborHeap findIndexedNeighbors(Example example){
+		NeighborHeap neighbors = new NeighborHeap(Math.min(k, trainIndices.length));
+		Query query = new Query(example);
+		Accumulator acc = accumulators.get();
+		
+		for( int j = 0; j < query.indices.length; j++ ){
+			int[] examples = postingExamples[query.indices[j]];
+			double[] values = postingValues[query.indices[j]];
+			double queryValue = query.values[j];
+			
+			for( int p = 0; p < examples.length; p++ ){
+				int i = examples[p];
+				if( !acc.touched[i] ){
+					acc.touched[i] = true;
+					acc.candidates[acc.numCandidates++] = i;
+				}
+				acc.dots[i] += queryValue*values[p];
+			}
+		}
+		
+		for( int c = 0; c < acc.numCandidates; c++ ){
+			int i = acc.candidates[c];
+			neighbors.offer(getDistance(acc.dots[i], query.norm, i), i);
+		}
+		
+		// the rest, in increasing order of distance, until they can't get in
+		int n = trainIndices.length;
+		for( int r = 0; r < n; r++ ){
+			int i = distanceType == COSINE ? r : normOrder[r];
+			if( !acc.touched[i] ){
+				double distance = getDistance(0.0, query.norm, i);
+				if( !neighbors.accepts(distance, i) ){
+					break;
+				}
+				neighbors.offer(distance, i);
+			}
+		}
+		
+		acc.clear();
+		return neighbors;
+	}
+	
+	/**
+	 * Find (approximately) the k training examples closest to example using the
+	 * LSH index: the closest of the examples that share a bucket with it in any
+	 * table.  If fewer than k examples do, fall back to a brute force search.
+	 * 
+	 * @param example
+	 * @return the neighbors
+	 */
+	private NeighborHeap findHashedNeighbors(Example example){
+		Query query = new Query(example);
+		Accumulator acc = accumulators.get();
+		acc.numCandidates = lshIndex.getCandidates(query.indices, query.values, acc.touched, acc.candidates, 0);
+		
+		NeighborHeap neighbors = new NeighborHeap(Math.min(k, trainIndices.length));
+		if( acc.numCandidates < neighbors.distances.length ){
+			acc.clear();
+			return findBruteForceNeighbors(example);
+		}
+		
+		for( int c = 0; c < acc.numCandidates; c++ ){
+			int i = acc.candidates[c];
+			neighbors.offer(getDistance(query, i), i);
+		}
+		
+		acc.clear();
+		return neighbors;
+	}
+	
+	/**
+	 * Get the distance between the query and a training example. Both distances
+	 * come from the dot product and the squared norms:
+	 * euclidean = sqrt(||a||^2 + ||b||^2 - 2 a.b) and cosine = 1 - a.b/(||a|| ||b||).
+	 * Only features that occur in the training data count towards the distance.
+	 * 
+	 * @param query
+	 * @param i index of the training example
+	 * @return the distance
+	 */
+	private double getDistance(Query query, int i){
+		return getDistance(dotProduct(query.indices, query.values, trainIndices[i], trainValues[i]), query.norm, i);
+	}
+	
+	/**
+	 * @param dot the dot product of the query and the training example
+	 * @param queryNorm the squared norm of the query
+	 * @param i index of the training example
+	 * @return the distance
+	 */
+	private double getDistance(double dot, double queryNorm, int i){
+		if( distanceType == COSINE ){
+			double norms = Math.sqrt(queryNorm * trainNorms[i]);
+			return norms == 0 ? 1.0 : 1.0 - dot/norms;
+		}else{
+			// rounding can make the squared distance slightly negative
+			return Math.sqrt(Math.max(0.0, queryNorm + trainNorms[i] - 2*dot));
+		}
+	}
+	
+	/**
+	 * Dot product of two sparse vectors by merging their sorted indices
+	 */
+	private static double dotProduct(int[] indices1, double[] values1, int[] indices2, double[] values2){
+		double dot = 0.0;
+		int i = 0;
+		int j = 0;
+		
+		while( i < indices1.length && j < indices2.length ){
+			if( indices1[i] < indices2[j] ){
+				i++;
+			}else if( indices1[i] > indices2[j] ){
+				j++;
+			}else{
+				dot += values1[i]*values2[j];
+				i++;
+				j++;
+			}
+		}
+		
+		return dot;
+	}
+	
+	private static double squaredNorm(double[] values){
+		double norm = 0.0;
 		
-		for( Integer featureNum: train.getAllFeatureIndices() ){
-			double diff = e1.getFeature(featureNum) - e2.getFeature(featureNum);
-			dist += diff*diff;
+		for( double v: values ){
+			norm += v*v;
 		}
 		
-		return Math.sqrt(dist);
+		return norm;
+	}
+	
+	/**
+	 * An example to classify, as sparse arrays restricted to the features that
+	 * occur in the training data
+	 */
+	private class Query{
+		public int[] indices;
+		public double[] values;
+		public double norm;
+		
+		public Query(Example example){
+			int[] allIndices = example.getSparseIndices();
+			double[] allValues = example.getSparseValues();
+			
+			int n = 0;
+			for( int featureNum: allIndices ){
+				if( isTrainFeature(featureNum) ){
+					n++;
+				}
+			}
+			
+			if( n == allIndices.length ){
+				indices = allIndices;
+				values = allValues;
+			}else{
+				indices = new int[n];
+				values = new double[n];
+				
+				n = 0;
+				for( int i = 0; i < allIndices.length; i++ ){
+					if( isTrainFeature(allIndices[i]) ){
+						indices[n] = allIndices[i];
+						values[n] = allValues[i];
+						n++;
+					}
+				}
+			}
+			
+			norm = squaredNorm(values);
+		}
+	}
+	
+	private boolean isTrainFeature(int featureNum){
+		return featureNum >= 0 && featureNum < trainFeatures.length && trainFeatures[featureNum];
 	}
 	
 	public void setK(int k){
 		this.k = k;
+		lastSearch = null;
 	}
 
-	private class ScoredExample implements Comparable<ScoredExample>{
-		public double distance;
-		public Example e;
+	/**
+	 * The k closest training examples seen so far, as a max-heap on distance (ties
+	 * going to the later example) over primitive arrays, so the farthest one can
+	 * be replaced in O(log k).
+	 */
+	private static class NeighborHeap{
+		public double[] distances;
+		public int[] indices;
+		public int size = 0;
 		
-		public ScoredExample(Example e, double distance){
-			this.e = e;
-			this.distance = distance;
+		public NeighborHeap(int capacity){
+			distances = new double[capacity];
+			indices = new int[capacity];
 		}
-
+		
+		/**
+		 * Whether neighbor 1 is farther than neighbor 2, ties broken by index so
+		 * that the result doesn't depend on the order they're offered in
+		 */
+		private static boolean farther(double distance1, int index1, double distance2, int index2){
+			int c = Double.compare(distance1, distance2);
+			return c > 0 || (c == 0 && index1 > index2);
+		}
+		
+		/**
+		 * @return the distance of the farthest neighbor, or infinity if there
+		 * aren't k neighbors yet
+		 */
+		public double bound(){
+			return size < distances.length ? Double.POSITIVE_INFINITY : distances[0];
+		}
+		
+		/**
+		 * @return whether (distance, index) would be kept if it were offered
+		 */
+		public boolean accepts(double distance, int index){
+			return size < distances.length || (size > 0 && farther(distances[0], indices[0], distance, index));
+		}
+		
+		public void offer(double distance, int index){
+			if( size < distances.length ){
+				int i = size++;
+				while( i > 0 ){
+					int parent = (i-1) >>> 1;
+					if( !farther(distance, index, distances[parent], indices[parent]) ){
+						break;
+					}
+					distances[i] = distances[parent];
+					indices[i] = indices[parent];
+					i = parent;
+				}
+				distances[i] = distance;
+				indices[i] = index;
+			}else if( size > 0 && farther(distances[0], indices[0], distance, index) ){
+				// replace the farthest
+				siftDown(distance, index, size);
+			}
+		}
+		
+		/**
+		 * Put (distance, index) at the root and sift it down within the first n entries
+		 */
+		private void siftDown(double distance, int index, int n){
+			int i = 0;
+			while( true ){
+				int child = 2*i + 1;
+				if( child >= n ){
+					break;
+				}
+				if( child+1 < n && farther(distances[child+1], indices[child+1], distances[child], indices[child]) ){
+					child++;
+				}
+				if( !farther(distances[child], indices[child], distance, index) ){
+					break;
+				}
+				distances[i] = distances[child];
+				indices[i] = indices[child];
+				i = child;
+			}
+			distances[i] = distance;
+			indices[i] = index;
+		}
+		
+		/**
+		 * Empty the heap for a new search, keeping the arrays if the capacity is
+		 * the same
+		 */
+		public void reset(int capacity){
+			if( distances.length != capacity ){
+				distances = new double[capacity];
+				indices = new int[capacity];
+			}
+			size = 0;
+		}
+		
+		/**
+		 * Sort the neighbors closest first.  Nothing can be offered after this.
+		 */
+		public void sort(){
+			for( int n = size-1; n > 0; n-- ){
+				double distance = distances[n];
+				int index = indices[n];
+				distances[n] = distances[0];
+				indices[n] = indices[0];
+				siftDown(distance, index, n);
+			}
+		}
+	}
+	
+	/**
+	 * KD-tree over the training examples as dense rows.  Each internal node
+	 * splits its examples at the median of the feature with the largest spread;
+	 * leaves hold up to LEAF_SIZE examples.  The nodes are stored in parallel
+	 * arrays and the examples of each node are a contiguous range of order.
+	 * The tree doesn't depend on the classifier's settings, so classifiers
+	 * sharing the training examples can share it too.
+	 */
+	private static class KDTree{
+		private static final int LEAF_SIZE = 8;
+		
+		// the training examples as dense rows over the training features
+		public double[] rows;
+		private int dimension;
+		private int[] featureColumns;
+		
+		// the training example indices, grouped by node
+		private int[] order;
+		
+		private int[] nodeStart;
+		private int[] nodeEnd;
+		private int[] nodeFeature; // -1 for leaves
+		private double[] nodeSplit;
+		private int[] nodeLeft;
+		private int[] nodeRight;
+		private int numNodes = 0;
+		
+		// per thread space for searching, so a query doesn't allocate anything
+		private ThreadLocal<SearchSpace> searchSpaces;
+		
+		/**
+		 * @param trainFeatures which feature indices occur in the training data
+		 * @param trainIndices the training examples' sorted feature indices
+		 * @param trainValues the training examples' feature values
+		 */
+		public KDTree(boolean[] trainFeatures, int[][] trainIndices, double[][] trainValues){
+			featureColumns = new int[trainFeatures.length];
+			for( int f = 0; f < trainFeatures.length; f++ ){
+				featureColumns[f] = trainFeatures[f] ? dimension++ : -1;
+			}
+			
+			if( dimension > KD_TREE_MAX_DIMENSION ){
+				return;
+			}
+			
+			int n = trainIndices.length;
+			rows = new double[n*dimension];
+			order = new int[n];
+			for( int i = 0; i < n; i++ ){
+				order[i] = i;
+				for( int j = 0; j < trainIndices[i].length; j++ ){
+					rows[i*dimension + featureColumns[trainIndices[i][j]]] = trainValues[i][j];
+				}
+			}
+			
+			int maxNodes = 2*n + 1;
+			nodeStart = new int[maxNodes];
+			nodeEnd = new int[maxNodes];
+			nodeFeature = new int[maxNodes];
+			nodeSplit = new double[maxNodes];
+			nodeLeft = new int[maxNodes];
+			nodeRight = new int[maxNodes];
+			build(0, n);
+			
+			final int d = dimension;
+			searchSpaces = ThreadLocal.withInitial(() -> new SearchSpace(d));
+		}
+		
+		/**
+		 * Build the subtree over order[start, end)
+		 * 
+		 * @return the index of its root
+		 */
+		private int build(int start, int end){
+			int node = numNodes++;
+			nodeStart[node] = start;
+			nodeEnd[node] = end;
+			nodeFeature[node] = -1;
+			
+			if( end - start <= LEAF_SIZE ){
+				return node;
+			}
+			
+			// split on the feature with the largest spread
+			int feature = -1;
+			double maxSpread = 0.0;
+			for( int c = 0; c < dimension; c++ ){
+				double min = Double.POSITIVE_INFINITY;
+				double max = Double.NEGATIVE_INFINITY;
+				for( int i = start; i < end; i++ ){
+					double v = rows[order[i]*dimension + c];
+					min = Math.min(min, v);
+					max = Math.max(max, v);
+				}
+				if( max - min > maxSpread ){
+					maxSpread = max - min;
+					feature = c;
+				}
+			}
+			
+			// all the examples are the same point
+			if( feature < 0 ){
+				return node;
+			}
+			
+			int mid = (start + end) >>> 1;
+			select(start, end, mid, feature);
+			
+			nodeFeature[node] = feature;
+			nodeSplit[node] = rows[order[mid]*dimension + feature];
+			nodeLeft[node] = build(start, mid);
+			nodeRight[node] = build(mid, end);
+			return node;
+		}
+		
+		/**
+		 * Rearrange order[start, end) so that the example at position k has the
+		 * value of feature it would have if sorted, with smaller values before it
+		 * and larger ones after it
+		 */
+		private void select(int start, int end, int k, int feature){
+			int lo = start;
+			int hi = end - 1;
+			
+			while( lo < hi ){
+				double pivot = rows[order[(lo + hi) >>> 1]*dimension + feature];
+				int i = lo;
+				int j = hi;
+				
+				while( i <= j ){
+					while( rows[order[i]*dimension + feature] < pivot ){
+						i++;
+					}
+					while( rows[order[j]*dimension + feature] > pivot ){
+						j--;
+					}
+					if( i <= j ){
+						int temp = order[i];
+						order[i] = order[j];
+						order[j] = temp;
+						i++;
+						j--;
+					}
+				}
+				
+				if( k <= j ){
+					hi = j;
+				}else if( k >= i ){
+					lo = i;
+				}else{
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * Find the k training examples closest to example, with knn's k and
+		 * distances.  The neighbors are kept in this thread's search space, so
+		 * they're only good until the thread's next search of the tree.
+		 */
+		public NeighborHeap findNeighbors(KNNClassifier knn, Example example){
+			SearchSpace space = searchSpaces.get();
+			space.neighbors.reset(Math.min(knn.k, knn.trainIndices.length));
+			
+			// the query as a dense row, leaving out features not in the training data
+			int[] indices = example.getSparseIndices();
+			double[] values = example.getSparseValues();
+			double[] q = space.query;
+			double norm = 0.0;
+			for( int j = 0; j < indices.length; j++ ){
+				if( knn.isTrainFeature(indices[j]) ){
+					q[featureColumns[indices[j]]] = values[j];
+					norm += values[j]*values[j];
+				}
+			}
+			
+			search(knn, 0, q, norm, space.neighbors);
+			
+			for( int j = 0; j < indices.length; j++ ){
+				if( knn.isTrainFeature(indices[j]) ){
+					q[featureColumns[indices[j]]] = 0.0;
+				}
+			}
+			return space.neighbors;
+		}
+		
+		/**
+		 * @param q the query as a dense row
+		 * @param norm the squared norm of the query
+		 */
+		private void search(KNNClassifier knn, int node, double[] q, double norm, NeighborHeap neighbors){
+			int feature = nodeFeature[node];
+			
+			if( feature < 0 ){
+				// the dot product over the dense rows adds up the same products in the
+				// same order as the sparse one, so the neighbors match brute force
+				for( int p = nodeStart[node]; p < nodeEnd[node]; p++ ){
+					int i = order[p];
+					double dot = 0.0;
+					for( int c = 0, r = i*dimension; c < dimension; c++, r++ ){
+						dot += q[c]*rows[r];
+					}
+					neighbors.offer(knn.getDistance(dot, norm, i), i);
+				}
+				return;
+			}
+			
+			double diff = q[feature] - nodeSplit[node];
+			int near = diff < 0 ? nodeLeft[node] : nodeRight[node];
+			int far = diff < 0 ? nodeRight[node] : nodeLeft[node];
+			
+			search(knn, near, q, norm, neighbors);
+			
+			// every example on the far side is at least |diff| away; leave some
+			// slack for the rounding in the distances
+			double bound = neighbors.bound();
+			if( diff*diff <= bound*bound*(1 + 1e-9) + 1e-12 ){
+				search(knn, far, q, norm, neighbors);
+			}
+		}
+		
+		/**
+		 * @return the estimated size of the rows and the node arrays in bytes
+		 */
+		public long memoryFootprint(){
+			return Model.arrayBytes(rows.length, 8) + Model.arrayBytes(featureColumns.length, 4)
+					+ Model.arrayBytes(order.length, 4) + 5*Model.arrayBytes(nodeStart.length, 4)
+					+ Model.arrayBytes(nodeSplit.length, 8);
+		}
+	}
+	
+	/**
+	 * One thread's space for searching a KD-tree: the query as a dense row, kept
+	 * all 0 between queries, and the heap the neighbors are found in
+	 */
+	private static class SearchSpace{
+		public double[] query;
+		public NeighborHeap neighbors;
+		
+		public SearchSpace(int dimension){
+			query = new double[dimension];
+			neighbors = new NeighborHeap(0);
+		}
+	}
+	
+	/**
+	 * Dot product accumulators for one query against an index, along
+	 * with which training examples have been touched so they can be reset in
+	 * time proportional to the number touched.
+	 */
+	private static class Accumulator{
+		public double[] dots;
+		public boolean[] touched;
+		public int[] candidates;
+		public int numCandidates = 0;
+		
+		public Accumulator(int n){
+			dots = new double[n];
+			touched = new boolean[n];
+			candidates = new int[n];
+		}
+		
+		public void clear(){
+			for( int c = 0; c < numCandidates; c++ ){
+				int i = candidates[c];
+				dots[i] = 0.0;
+				touched[i] = false;
+			}
+			numCandidates = 0;
+		}
+	}
+	
+	/**
+	 * A classifier whose settings can't be changed, searching without the
+	 * last search cache so it can be used from any number of threads
+	 */
+	private static final class KNNModel implements Model{
+		private final KNNClassifier knn;
+		
+		public KNNModel(KNNClassifier knn){
+			this.knn = knn;
+		}
+		
+		@Override
+		public double classify(Example example){
+			return knn.vote(knn.findNeighbors(example))[0];
+		}
+		
+		/**
+		 * The fraction of the k nearest neighbors that have the predicted label
+		 */
+		@Override
+		public double confidence(Example example){
+			return knn.vote(knn.findNeighbors(example))[1];
+		}
+		
 		@Override
-		public int compareTo(ScoredExample o) {
-			// we want smallest first (i.e. closest distances)
-			return Double.compare(distance, o.distance);
+		public double[][] classify(List<Example> examples){
+			return knn.classify(examples);
+		}
+		
+		/**
+		 * The training arrays and the search index, which the model shares with
+		 * the classifier it came from (the per thread accumulators aren't counted)
+		 */
+		@Override
+		public long memoryFootprint(){
+			int n = knn.trainIndices.length;
+			long bytes = OBJECT_BYTES*2 + 4*Model.arrayBytes(n, 8) + Model.arrayBytes(knn.trainFeatures.length, 1);
+			for( int i = 0; i < n; i++ ){
+				bytes += Model.arrayBytes(knn.trainIndices[i].length, 4) + Model.arrayBytes(knn.trainValues[i].length, 8);
+			}
+			
+			if( knn.searchMethod == INVERTED_INDEX ){
+				bytes += 2*Model.arrayBytes(knn.postingExamples.length, 8) + Model.arrayBytes(n, 4);
+				for( int f = 0; f < knn.postingExamples.length; f++ ){
+					bytes += Model.arrayBytes(knn.postingExamples[f].length, 4) + Model.arrayBytes(knn.postingValues[f].length, 8);
+				}
+			}else if( knn.searchMethod == LSH ){
+				bytes += knn.lshIndex.memoryFootprint();
+			}else if( knn.searchMethod == KD_TREE && knn.kdTree.rows != null ){
+				bytes += knn.kdTree.memoryFootprint();
+			}
+			
+			return bytes;
+		}
+	}
+	
+	/**
+	 * The prediction for an example
+	 */
+	private static class SearchResult{
+		public final Example example;
+		public final int[] indices;
+		public final double[] result;
+		
+		public SearchResult(Example example, double[] result){
+			this.example = example;
+			this.indices = example.getSparseIndices();
+			this.result = result;
 		}
 	}
 }
@@ -0,0 +1,173 @@
+package ml.classifiers;
+
+import java.util.Arrays;
+
+/**
+ * Locality sensitive hashing index over sparse vectors using sign random
+ * projections. Each table hashes a vector to the signs of its dot products
+ * with bits random hyperplanes, so vectors at a small angle to each other are
+ * likely to land in the same bucket in at least one table.
+ *
+ * The hyperplanes have random +1/-1 entries that are computed from a hash of
+ * (seed, table, feature index) rather than stored, so the index takes no
+ * space per feature.
+ */
+public class LSHIndex {
+	// the most bits a signature can have, so it can be packed with an index
+	public static final int MAX_BITS = 31;
+
+	private int tables;
+	private int bits;
+	private long seed;
+
+	/**
+	 * for each table, the distinct signatures in increasing order, where each
+	 * bucket's examples start in members, and the examples grouped by bucket
+	 */
+	private long[][] keys;
+	private int[][] starts;
+	private int[][] members;
+
+	// per thread space for a query's projections, so a query doesn't allocate
+	private ThreadLocal<double[]> queryProjections;
+
+	/**
+	 * Hash the vectors into the tables
+	 *
+	 * @param indices the vectors' sorted feature indices
+	 * @param values  the vectors' feature values
+	 * @param tables  number of hash tables
+	 * @param bits    number of hyperplanes per table, at most MAX_BITS
+	 * @param seed    seed for the hyperplanes
+	 */
+	public LSHIndex(int[][] indices, double[][] values, int tables, int bits, long seed) {
+		if (bits < 1 || bits > MAX_BITS) {
+			throw new RuntimeException("Number of hash bits must be between 1 and " + MAX_BITS + ": " + bits);
+		}
+
+		this.tables = tables;
+		this.bits = bits;
+		this.seed = seed;
+
+		int n = indices.length;
+		keys = new long[tables][];
+		starts = new int[tables][];
+		members = new int[tables][];
+
+		double[] projections = new double[bits];
+		long[] sorted = new long[n];
+
+		for (int t = 0; t < tables; t++) {
+			// sort (signature, example) pairs packed into longs to group the buckets
+			for (int i = 0; i < n; i++) {
+				sorted[i] = (signature(indices[i], values[i], t, projections) << 32) | i;
+			}
+			Arrays.sort(sorted);
+
+			int numBuckets = 0;
+			for (int i = 0; i < n; i++) {
+				if (i == 0 || (sorted[i] >>> 32) != (sorted[i - 1] >>> 32)) {
+					numBuckets++;
+				}
+			}
+
+			keys[t] = new long[numBuckets];
+			starts[t] = new int[numBuckets + 1];
+			members[t] = new int[n];
+
+			int bucket = -1;
+			for (int i = 0; i < n; i++) {
+				long key = sorted[i] >>> 32;
+				if (bucket < 0 || key != keys[t][bucket]) {
+					bucket++;
+					keys[t][bucket] = key;
+					starts[t][bucket] = i;
+				}
+				members[t][i] = (int) sorted[i];
+			}
+			starts[t][numBuckets] = n;
+		}
+
+		queryProjections = ThreadLocal.withInitial(() -> new double[bits]);
+	}
+
+	/**
+	 * Add the vectors that share a bucket with the query in any table to
+	 * candidates, skipping the ones already marked in seen (and marking them)
+	 *
+	 * @param indices       the query's sorted feature indices
+	 * @param values        the query's feature values
+	 * @param seen          which vectors are already candidates
+	 * @param candidates    where to add the candidates
+	 * @param numCandidates how many candidates there already are
+	 * @return the new number of candidates
+	 */
+	public int getCandidates(int[] indices, double[] values, boolean[] seen, int[] candidates, int numCandidates) {
+		double[] projections = queryProjections.get();
+
+		for (int t = 0; t < tables; t++) {
+			int bucket = Arrays.binarySearch(keys[t], signature(indices, values, t, projections));
+			if (bucket >= 0) {
+				for (int m = starts[t][bucket]; m < starts[t][bucket + 1]; m++) {
+					int i = members[t][m];
+					if (!seen[i]) {
+						seen[i] = true;
+						candidates[numCandidates++] = i;
+					}
+				}
+			}
+		}
+
+		return numCandidates;
+	}
+
+	/**
+	 * @return the estimated size of the tables in bytes
+	 */
+	public long memoryFootprint() {
+		long bytes = 3 * Model.arrayBytes(tables, 8);
+		for (int t = 0; t < tables; t++) {
+			bytes += Model.arrayBytes(keys[t].length, 8) + Model.arrayBytes(starts[t].length, 4)
+					+ Model.arrayBytes(members[t].length, 4);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the signature of the vector in table t, as an unsigned bits-bit
+	 *         number
+	 */
+	private long signature(int[] indices, double[] values, int t, double[] projections) {
+		Arrays.fill(projections, 0.0);
+
+		for (int j = 0; j < indices.length; j++) {
+			// bit b of the hash is the sign of hyperplane b at this feature
+			long hash = mix(seed + 0x9E3779B97F4A7C15L * (t + 1) + 0xC2B2AE3D27D4EB4FL * indices[j]);
+			double v = values[j];
+			for (int b = 0; b < bits; b++) {
+				if (((hash >>> b) & 1) != 0) {
+					projections[b] += v;
+				} else {
+					projections[b] -= v;
+				}
+			}
+		}
+
+		long signature = 0;
+		for (int b = 0; b < bits; b++) {
+			if (projections[b] > 0) {
+				signature |= 1L << b;
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * splitmix64 finalizer
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,36 @@
+package ml.classifiers;
+
+/**
+ * Interface for a binary classifier that predicts with a hyperplane: the sign
+ * of the sum of the feature weights times the feature values, plus a bias.
+ * 
+ * By default the training labels are expected to be -1 and 1. After
+ * setPositiveLabel is called, examples with that label are treated as 1 and
+ * all others as -1, so one data set can be shared between several binary
+ * problems without relabeling it.
+ */
+public interface LinearClassifier extends Classifier {
+	/**
+	 * Train treating examples labeled label as positive and all others as
+	 * negative. Should be called before train.
+	 * 
+	 * @param label
+	 */
+	public void setPositiveLabel(double label);
+
+	/**
+	 * Should only be called *after* train has been called.
+	 * 
+	 * @param featureIndex
+	 * @return the learned weight for featureIndex, or 0 if it isn't a feature
+	 *         that was learned over
+	 */
+	public double getWeight(int featureIndex);
+
+	/**
+	 * Should only be called *after* train has been called.
+	 * 
+	 * @return the learned bias
+	 */
+	public double getBias();
+}
@@ -0,0 +1,103 @@
+package ml.classifiers;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import ml.data.Example;
+
+/**
+ * The hyperplane learned by a binary linear classifier, with the weights in a
+ * dense array indexed by feature. Predicts 1 or -1 by the sign of w * x + b (0
+ * on the hyperplane) with |w * x + b| as the confidence, like the classifiers
+ * themselves. Features that weren't learned over have weight 0.
+ */
+public final class LinearModel implements Model {
+	private final double[] weights;
+	private final double bias;
+
+	/**
+	 * @param weights the weight of each feature index (the array is kept, so it
+	 *                must not be changed afterwards)
+	 * @param bias
+	 */
+	LinearModel(double[] weights, double bias) {
+		this.weights = weights;
+		this.bias = bias;
+	}
+
+	/**
+	 * Copy the learned weights and bias out of a trained classifier
+	 *
+	 * @param classifier
+	 * @param features   the feature indices it was trained over
+	 * @return the model
+	 */
+	static LinearModel copyOf(LinearClassifier classifier, Set<Integer> features) {
+		int maxFeature = -1;
+		for (int featureIndex : features) {
+			maxFeature = Math.max(maxFeature, featureIndex);
+		}
+
+		double[] weights = new double[maxFeature + 1];
+		for (int featureIndex : features) {
+			weights[featureIndex] = classifier.getWeight(featureIndex);
+		}
+
+		return new LinearModel(weights, classifier.getBias());
+	}
+
+	/**
+	 * @param example
+	 * @return w * x + b
+	 */
+	public double getDistanceFromHyperplane(Example example) {
+		int[] features = example.getSparseIndices();
+		double[] values = example.getSparseValues();
+		double sum = 0;
+
+		for (int i = 0; i < features.length; i++) {
+			if (features[i] >= 0 && features[i] < weights.length) {
+				sum += weights[features[i]] * values[i];
+			}
+		}
+
+		return sum + bias;
+	}
+
+	@Override
+	public double classify(Example example) {
+		return sign(getDistanceFromHyperplane(example));
+	}
+
+	@Override
+	public double confidence(Example example) {
+		return Math.abs(getDistanceFromHyperplane(example));
+	}
+
+	/**
+	 * Classify all the examples in parallel, computing each example's distance
+	 * from the hyperplane once for both its prediction and its confidence
+	 */
+	@Override
+	public double[][] classify(final List<Example> examples) {
+		final double[][] results = new double[2][examples.size()];
+
+		IntStream.range(0, examples.size()).parallel().forEach(i -> {
+			double sum = getDistanceFromHyperplane(examples.get(i));
+			results[0][i] = sign(sum);
+			results[1][i] = Math.abs(sum);
+		});
+
+		return results;
+	}
+
+	private static double sign(double sum) {
+		return sum > 0 ? 1.0 : (sum < 0 ? -1.0 : 0);
+	}
+
+	@Override
+	public long memoryFootprint() {
+		return OBJECT_BYTES + 8 + Model.arrayBytes(weights.length, 8);
+	}
+}
@@ -0,0 +1,80 @@
+package ml.classifiers;
+
+import java.util.List;
+
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * What a classifier learned, separated from how it learned it.  A model only
+ * holds what it needs to classify (no training data, settings or scratch
+ * space), never changes once it's made, and can be used from any number of
+ * threads at once.  Training a classifier again makes a new model rather than
+ * changing the old one.
+ */
+public interface Model {
+	// rough size of an object's header, for estimating memory footprints
+	public static final int OBJECT_BYTES = 16;
+
+	/**
+	 * @param example
+	 * @return the predicted label for this example
+	 */
+	public double classify(Example example);
+
+	/**
+	 * @param example
+	 * @return how confident the model is in its prediction for this example,
+	 * in the same units as the classifier's confidence
+	 */
+	public double confidence(Example example);
+
+	/**
+	 * Estimate how much memory the model takes up: the sizes of its arrays and
+	 * objects, not counting anything it shares with other objects
+	 *
+	 * @return the estimated size in bytes
+	 */
+	public long memoryFootprint();
+
+	/**
+	 * Classify all of the examples.  By default this calls classify and then
+	 * confidence on each example in turn.
+	 *
+	 * @param examples
+	 * @return {the predicted labels, the confidences}, indexed like examples
+	 */
+	public default double[][] classify(List<Example> examples){
+		double[][] results = new double[2][examples.size()];
+
+		for( int i = 0; i < examples.size(); i++ ){
+			Example e = examples.get(i);
+			results[0][i] = classify(e);
+			results[1][i] = confidence(e);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Classify all of the examples in the data set
+	 *
+	 * @param data
+	 * @return {the predicted labels, the confidences}, indexed like the examples in data
+	 */
+	public default double[][] classify(DataSet data){
+		return classify(data.getData());
+	}
+
+	/**
+	 * Estimate the size of an array, including its header
+	 *
+	 * @param length
+	 * @param elementBytes the size of each element (8 for a double or a reference
+	 * on a 64-bit JVM, 4 for an int or float)
+	 * @return the estimated size in bytes, rounded up to a multiple of 8
+	 */
+	public static long arrayBytes(long length, int elementBytes){
+		return OBJECT_BYTES + ((length*elementBytes + 7) & ~7L);
+	}
+}
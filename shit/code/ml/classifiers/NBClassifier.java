@@ -1,13 +1,12 @@
 package ml.classifiers;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.List;
+import java.util.stream.IntStream;
 
 import ml.data.CrossValidationSet;
 import ml.data.DataSet;
@@ -18,31 +17,76 @@ import ml.utils.HashMapCounter;
 public class NBClassifier implements Classifier {
 
 	private double lambda = 0.00;
-	private DataSet data;
-	private ArrayList<Example> dataArr;
-	private HashMapCounter<String> hmap;
+
+	// the number of training examples
+	private int numExamples;
+
+	// count tables: labelCounts[l] is the number of examples with label
+	// labelIds[l] and featureCounts[l][j] the number of those with a non-zero
+	// value for feature featureIds[j]
+	private double[] labelIds;
+	private int[] featureIds;
+	private boolean denseFeatures;
+	// the word for each feature in featureIds (may contain nulls), for the
+	// compiled model
+	private String[] words;
+	private int[] labelCounts;
+	private int[][] featureCounts;
+
 	private double prediction;
 	private boolean pos = false;
 
-	private static HashMap<String, Double> totalWordCountMap;
+	// set when the classifier was loaded from a saved model rather than trained
+	private NBModel model;
 
 	public NBClassifier() {
 	}
 
 	@Override
 	public void train(DataSet data) {
-		hmap = new HashMapCounter<String>();
-		this.data = data;
-		dataArr = data.getData();
+		model = null;
+		ArrayList<Example> dataArr = data.getData();
+		numExamples = dataArr.size();
+
+		// label ids in the order we score them
+		labelIds = new double[data.getLabels().size()];
+		int l = 0;
+		for (double label : data.getLabels()) {
+			labelIds[l++] = label;
+		}
+
+		// sorted feature indices; the column of a feature in the count tables is its
+		// position in this array
+		ArrayList<Integer> featureList = new ArrayList<Integer>(data.getAllFeatureIndices());
+		Collections.sort(featureList);
+		featureIds = new int[featureList.size()];
+		for (int j = 0; j < featureIds.length; j++) {
+			featureIds[j] = featureList.get(j);
+		}
+		denseFeatures = featureIds.length == 0
+				|| (featureIds[0] == 0 && featureIds[featureIds.length - 1] == featureIds.length - 1);
+
+		HashMap<Integer, String> featureMap = data.getFeatureMap();
+		words = new String[featureIds.length];
+		for (int j = 0; j < featureIds.length; j++) {
+			words[j] = featureMap.get(featureIds[j]);
+		}
+
+		labelCounts = new int[labelIds.length];
+		featureCounts = new int[labelIds.length][featureIds.length];
+
 		for (int i = 0; i < dataArr.size(); i++) { // loop to get each example
 			Example example = dataArr.get(i);
+			int labelIndex = getLabelIndex(example.getLabel());
+			labelCounts[labelIndex]++;
+
+			int[] counts = featureCounts[labelIndex];
 			for (Integer feature : example.getFeatureSet()) { // loop to get each feature within
-				if (example.getFeature(feature) != 0.0) {
-					// System.out.println("increment");
+				int column = getColumn(feature);
 
-					String pair = Integer.toString(feature) + "," + Double.toString(example.getLabel());
-					hmap.increment(pair); // positive feature since available AND
-											// non-zero
+				// positive feature since available AND non-zero
+				if (column >= 0 && example.getFeature(feature) != 0.0) {
+					counts[column]++;
 				}
 			}
 		}
@@ -51,11 +95,15 @@ public class NBClassifier implements Classifier {
 
 	@Override
 	public double classify(Example example) {
+		if (model != null) {
+			prediction = model.classify(example);
+			return prediction;
+		}
 
 		Double max = -Double.MAX_VALUE;
 		double prediction = 0.0;
 
-		for (double label : data.getLabels()) {
+		for (double label : labelIds) {
 			double prob = this.getLogProb(example, label);
 			// System.out.println(prob);
 			if (prob > max) {
@@ -71,12 +119,54 @@ public class NBClassifier implements Classifier {
 
 	@Override
 	public double confidence(Example example) {
+		if (model != null) {
+			int labelIndex = model.getLabelIndex(prediction);
+			return labelIndex < 0 ? Double.NEGATIVE_INFINITY : model.getLogProb(example, labelIndex);
+		}
 
 		double MLL = this.getLogProb(example, prediction);
 
 		return MLL;
 	}
 
+	/**
+	 * Classify all the examples in parallel. Each example's predicted label and
+	 * its log probability come from the same pass over the labels.
+	 * 
+	 * @param examples
+	 * @return {predictions, confidences (log probabilities)}, indexed like
+	 *         examples
+	 */
+	@Override
+	public double[][] classify(final List<Example> examples) {
+		if (model != null) {
+			return model.classify(examples);
+		}
+
+		final double[][] results = new double[2][examples.size()];
+
+		IntStream.range(0, examples.size()).parallel().forEach(i -> {
+			Example example = examples.get(i);
+
+			double max = -Double.MAX_VALUE;
+			double prediction = 0.0;
+			boolean found = false;
+			for (double label : labelIds) {
+				double prob = getLogProb(example, label);
+				if (prob > max) {
+					max = prob;
+					prediction = label;
+					found = true;
+				}
+			}
+
+			results[0][i] = prediction;
+			results[1][i] = found ? max : getLogProb(example, prediction);
+		});
+
+		return results;
+	}
+
 	public void setLambda(double lambda) {
 		this.lambda = lambda;
 	}
@@ -86,15 +176,10 @@ public class NBClassifier implements Classifier {
 	}
 
 	public double getLogProb(Example ex, double label) {
-		int labelCount = 0;
-		for (int i = 0; i < dataArr.size(); i++) {
-			Example e = dataArr.get(i);
-			if (e.getLabel() == label) {
-				labelCount++;
-			}
-		}
+		int labelIndex = getLabelIndex(label);
+		int labelCount = labelIndex < 0 ? 0 : labelCounts[labelIndex];
 
-		double labelProb = labelCount / (double) dataArr.size();
+		double labelProb = labelCount / (double) numExamples;
 		// System.out.println(labelProb+" hahaha");
 		double sum = 0.0;
 		for (Integer featureIndex : ex.getFeatureSet()) {
@@ -108,7 +193,7 @@ public class NBClassifier implements Classifier {
 			return sum;
 
 		} else {
-			for (Integer featureIndex2 : data.getAllFeatureIndices()) {
+			for (int featureIndex2 : featureIds) {
 				if (!ex.getFeatureSet().contains(featureIndex2)) {
 					double featureProb2 = 1 - this.getFeatureProb(featureIndex2, label);
 					// System.out.println(featureProb2+"rub2");
@@ -121,16 +206,140 @@ public class NBClassifier implements Classifier {
 	}
 
 	public double getFeatureProb(int featureIndex, double label) {
-		int labelCount = 0;
-		for (int i = 0; i < dataArr.size(); i++) {
-			Example e = dataArr.get(i);
-			if (e.getLabel() == label) {
-				labelCount++;
+		int labelIndex = getLabelIndex(label);
+		int column = getColumn(featureIndex);
+		int labelCount = labelIndex < 0 ? 0 : labelCounts[labelIndex];
+		int count = labelIndex < 0 || column < 0 ? 0 : featureCounts[labelIndex][column];
+		double featureProb = (count + lambda) / (labelCount + featureIds.length * lambda);
+		return featureProb;
+	}
+
+	/**
+	 * @param label
+	 * @return the row of label in the count tables, or -1 if it wasn't seen
+	 */
+	private int getLabelIndex(double label) {
+		for (int i = 0; i < labelIds.length; i++) {
+			if (labelIds[i] == label) {
+				return i;
 			}
 		}
-		String pair = Integer.toString(featureIndex) + "," + Double.toString(label);
-		double featureProb = (hmap.get(pair) + lambda) / (labelCount + data.getAllFeatureIndices().size() * lambda);
-		return featureProb;
+		return -1;
+	}
+
+	/**
+	 * @param featureIndex
+	 * @return the column of featureIndex in the count tables, or -1 if it isn't a
+	 *         feature of the training data
+	 */
+	private int getColumn(int featureIndex) {
+		if (denseFeatures) {
+			return featureIndex >= 0 && featureIndex < featureIds.length ? featureIndex : -1;
+		}
+		int column = Arrays.binarySearch(featureIds, featureIndex);
+		return column < 0 ? -1 : column;
+	}
+
+	/**
+	 * The label ids, i.e. the rows of the count tables. Not to be modified.
+	 * 
+	 * @return the label ids
+	 */
+	double[] getLabelIds() {
+		return labelIds;
+	}
+
+	/**
+	 * The sorted feature indices, i.e. the columns of the count tables. Not to be
+	 * modified.
+	 * 
+	 * @return the feature indices
+	 */
+	int[] getFeatureIds() {
+		return featureIds;
+	}
+
+	/**
+	 * The number of training examples with each label that have a non-zero value
+	 * for each feature, indexed [label row][feature column]. Not to be modified.
+	 * 
+	 * @return the count tables
+	 */
+	int[][] getFeatureCounts() {
+		return featureCounts;
+	}
+
+	/**
+	 * Compile the trained counts into a compact table-based model using the
+	 * current lambda and feature setting.
+	 * 
+	 * @return the compiled model
+	 */
+	public NBModel getCompiledModel() {
+		if (model != null) {
+			return model;
+		}
+
+		int numLabels = labelIds.length;
+		int numFeatures = featureIds.length;
+
+		double[] logPriors = new double[numLabels];
+		double[] logUnseen = new double[numLabels];
+		double[][] logProbs = new double[numLabels][numFeatures];
+		double[][] logNotProbs = new double[numLabels][numFeatures];
+
+		for (int i = 0; i < numLabels; i++) {
+			int labelCount = labelCounts[i];
+			double denominator = labelCount + numFeatures * lambda;
+
+			logPriors[i] = Math.log10(labelCount / (double) numExamples);
+			logUnseen[i] = Math.log10(lambda / denominator);
+
+			for (int j = 0; j < numFeatures; j++) {
+				double featureProb = (featureCounts[i][j] + lambda) / denominator;
+				logProbs[i][j] = Math.log10(featureProb);
+				logNotProbs[i][j] = Math.log10(1 - featureProb);
+			}
+		}
+
+		return NBModel.compile(labelIds, logPriors, logUnseen, featureIds, words, logProbs, logNotProbs, pos, lambda);
+	}
+
+	/**
+	 * The compiled model (see {@link #getCompiledModel()}), which only keeps the
+	 * log probability tables rather than the training data and counts
+	 */
+	@Override
+	public Model getModel() {
+		return getCompiledModel();
+	}
+
+	/**
+	 * Save the trained model to a binary file that can be memory-mapped with
+	 * {@link #load(String)}.
+	 * 
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void save(String filename) throws IOException {
+		getCompiledModel().save(filename);
+	}
+
+	/**
+	 * Load a classifier from a model file written by {@link #save(String)}. The
+	 * file is memory-mapped, so no training data is needed. The lambda and
+	 * positive-features settings are the ones the model was saved with.
+	 * 
+	 * @param filename
+	 * @return a classifier that is ready to classify
+	 * @throws IOException
+	 */
+	public static NBClassifier load(String filename) throws IOException {
+		NBClassifier nb = new NBClassifier();
+		nb.model = NBModel.load(filename);
+		nb.lambda = nb.model.getLambda();
+		nb.pos = nb.model.usesOnlyPositiveFeatures();
+		return nb;
 	}
 
 	/**
@@ -166,72 +375,6 @@ public class NBClassifier implements Classifier {
 		System.out.println("Time taken: " + (end - start));
 	}
 
-	private static void fillWordToCountMaps(NBClassifier nb, HashMap<Integer, String> fmap,
-			HashMap<String, Double> positives, HashMap<String, Double> negatives, HashMap<String, Double> neutrals) {
-		// For each label (pos, neutral, neg) we fill a new hashmap, word->count
-		for (String s : nb.hmap.keySet()) {
-			String[] ss = s.split(",");
-			String word = fmap.get(Integer.parseInt(ss[0]));
-			double label = Double.parseDouble(ss[1]);
-			if (label == 1) {
-				positives.put(word, (double) nb.hmap.get(s));
-			} else if (label == -1) {
-				negatives.put(word, (double) nb.hmap.get(s));
-			} else {
-				neutrals.put(word, (double) nb.hmap.get(s));
-			}
-		}
-	}
-
-	private static void fillTotalWordCountMap(ArrayList<HashMap<String, Double>> hashMaps,
-			HashMap<String, Double> positives, HashMap<String, Double> negatives, HashMap<String, Double> neutrals) {
-		// For each label hashmap
-		for (HashMap<String, Double> hashMap : hashMaps) {
-			// For each word
-			for (String s : hashMap.keySet()) {
-				// Put a count for that word if we haven't already
-				if (totalWordCountMap.get(s) == null) {
-					// 0 if null
-					Double posCount = (positives.get(s) != null) ? positives.get(s) : 0;
-					Double negCount = (negatives.get(s) != null) ? negatives.get(s) : 0;
-					Double neutCount = (neutrals.get(s) != null) ? neutrals.get(s) : 0;
-					totalWordCountMap.put(s, posCount + negCount + neutCount);
-				}
-			}
-		}
-	}
-
-	private static HashMap<String, Double> replaceCountsWithProbabilities(HashMap<String, Double> hashMap, int cutoff) {
-		HashMap<String, Double> probMap = new HashMap<String, Double>();
-		for (String s : hashMap.keySet()) {
-			double count = hashMap.get(s);
-			double denom = totalWordCountMap.get(s);
-			// Only incl if count is greater than/equal to cutoff
-			if (count >= cutoff) {
-				probMap.put(s, count / denom);
-			}
-		}
-		return probMap;
-	}
-
-	private static LinkedHashMap<String, Double> sortMapByValues(HashMap<String, Double> hashMap) {
-		return hashMap.entrySet().stream().sorted(Map.Entry.comparingByValue()).collect(Collectors
-				.toMap(Map.Entry::getKey, Map.Entry::getValue, (oldValue, newValue) -> oldValue, LinkedHashMap::new));
-	}
-
-	private static void makeWordRankingFile(HashMap<String, Double> sorted, int cutoff, String label) {
-		try {
-			PrintWriter writer = new PrintWriter(new File(label + ".txt"));
-			writer.println("Most" + label + "words, where count(word)>=" + cutoff);
-			for (String s : sorted.keySet()) {
-				writer.println(s + "\t" + sorted.get(s));
-			}
-			writer.close();
-		} catch (FileNotFoundException e1) {
-			e1.printStackTrace();
-		}
-	}
-
 	private static void trickyExampleTests(NBClassifier nb, String[] trickySentences, HashMap<Integer, String> fmap) {
 		// Reverse the index to feature hashmap
 		HashMap<String, Integer> wordToFeatureIndex = new HashMap<String, Integer>();
@@ -286,9 +429,10 @@ public class NBClassifier implements Classifier {
 			nb.train(trainDS);
 
 			// number of correct predictions
+			double[] predictions = nb.classify(testArray)[0];
 			int numCorrect = 0;
-			for (Example e : testArray) {
-				if (nb.classify(e) == e.getLabel()) {
+			for (int j = 0; j < predictions.length; j++) {
+				if (predictions[j] == testArray.get(j).getLabel()) {
 					numCorrect++;
 				}
 			}
@@ -334,39 +478,24 @@ public class NBClassifier implements Classifier {
 		System.out.println("training on entire dataset");
 		nb.train(data);
 
-		// Get positiveness/negativeness/neutralness of each word
-		// For each label (pos, neutral, neg) we fill a new hashmap, word->count
+		// save the model so it can be loaded without retraining
+		try {
+			nb.save("code/nb.model");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		// Get positiveness/negativeness/neutralness of each word, straight from the
+		// count tables
 		HashMap<Integer, String> fmap = trainData.getFeatureMap();
-		HashMap<String, Double> positives = new HashMap<String, Double>();
-		HashMap<String, Double> negatives = new HashMap<String, Double>();
-		HashMap<String, Double> neutrals = new HashMap<String, Double>();
-		fillWordToCountMaps(nb, fmap, positives, negatives, neutrals);
-
-		// Also get a hashmap of the total count of each word across all labels
-		totalWordCountMap = new HashMap<String, Double>();
-
-		// Get hashmap of totals so we can normalize scores
-		ArrayList<HashMap<String, Double>> hashMaps = new ArrayList<HashMap<String, Double>>();
-		hashMaps.add(positives);
-		hashMaps.add(negatives);
-		hashMaps.add(neutrals);
-		fillTotalWordCountMap(hashMaps, positives, negatives, neutrals);
-
-		// Replace counts with probabilities of each word
 		int cutoff = 20; // min number of instances of the word
-		HashMap<String, Double> positiveProbs = replaceCountsWithProbabilities(positives, cutoff);
-		HashMap<String, Double> negativeProbs = replaceCountsWithProbabilities(negatives, cutoff);
-		HashMap<String, Double> neutralProbs = replaceCountsWithProbabilities(neutrals, cutoff);
-
-		// Sort by value
-		LinkedHashMap<String, Double> sortedPositives = sortMapByValues(positiveProbs);
-		LinkedHashMap<String, Double> sortedNegatives = sortMapByValues(negativeProbs);
-		LinkedHashMap<String, Double> sortedNeutrals = sortMapByValues(neutralProbs);
+		int topK = 1000; // number of words to keep at each end of the rankings
+		WordPolarityRanker ranker = new WordPolarityRanker(nb, fmap, cutoff, topK);
 
 		// Write the rankings of each word for each label into the corresponding file
-		makeWordRankingFile(sortedPositives, cutoff, "positive");
-		makeWordRankingFile(sortedNegatives, cutoff, "negative");
-		makeWordRankingFile(sortedNeutrals, cutoff, "neutral");
+		ranker.writeRankingFile(1, "positive");
+		ranker.writeRankingFile(-1, "negative");
+		ranker.writeRankingFile(0, "neutral");
 
 		// Tricky sentences with negation and idiomatic phrases
 		String[] trickySentences = { "its a love hate relationship", "the class is fucking cool",
@@ -379,5 +508,13 @@ public class NBClassifier implements Classifier {
 		// Test them
 		trickyExampleTests(nb, trickySentences, fmap);
 
+		// The saved model should give the same predictions
+		try {
+			NBClassifier loaded = NBClassifier.load("code/nb.model");
+			trickyExampleTests(loaded, trickySentences, fmap);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 	}
 }
@@ -1,6 +1,7 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -144,6 +145,15 @@ public class NBClassifierOld implements Classifier {
 		lastLogProb = maxLogProb;
 	}
 
+	/**
+	 * Copy the counts into a model with the current lambda and feature setting
+	 * that gives the same predictions and confidences as this classifier
+	 */
+	@Override
+	public Model getModel() {
+		return new CountsModel(this);
+	}
+
 	/**
 	 * Set the lambda (regularization/smoothing parameter) value
 	 * 
@@ -234,4 +244,135 @@ public class NBClassifierOld implements Classifier {
 				/ ((double) labelCounts.get(label) + 2 * lambda);
 	}
 
+	/**
+	 * The counts of a trained NBClassifierOld in arrays rather than hash maps.
+	 * The labels and features are kept in the order the classifier visits them,
+	 * so the sums (and ties between labels) come out exactly the same.
+	 */
+	private static class CountsModel implements Model {
+		private final double lambda;
+		private final boolean onlyPosFeatures;
+		private final int totalCount;
+
+		private final double[] labels;
+		private final int[] labelCounts;
+
+		// for each label, the sorted indices of the features it has positive counts
+		// for, and those counts
+		private final int[][] features;
+		private final int[][] featureCounts;
+
+		private final int[] allFeatures;
+
+		public CountsModel(NBClassifierOld nb) {
+			lambda = nb.lambda;
+			onlyPosFeatures = nb.onlyPosFeatures;
+			totalCount = nb.totalCount;
+
+			Set<Double> labelSet = nb.labelCounts.keySet();
+			labels = new double[labelSet.size()];
+			labelCounts = new int[labels.length];
+			features = new int[labels.length][];
+			featureCounts = new int[labels.length][];
+
+			int l = 0;
+			for (double label : labelSet) {
+				labels[l] = label;
+				labelCounts[l] = nb.labelCounts.get(label);
+
+				HashMapCounter<Integer> counts = nb.labelFeatureCount.get(label);
+				features[l] = new int[counts.size()];
+				int i = 0;
+				for (int f : counts.keySet()) {
+					features[l][i++] = f;
+				}
+				Arrays.sort(features[l]);
+
+				featureCounts[l] = new int[features[l].length];
+				for (i = 0; i < features[l].length; i++) {
+					featureCounts[l][i] = counts.get(features[l][i]);
+				}
+				l++;
+			}
+
+			allFeatures = new int[nb.allFeatures.size()];
+			int i = 0;
+			for (int f : nb.allFeatures) {
+				allFeatures[i++] = f;
+			}
+		}
+
+		@Override
+		public double classify(Example example) {
+			return predict(example)[0];
+		}
+
+		/**
+		 * @return the log probability of the most likely label
+		 */
+		@Override
+		public double confidence(Example example) {
+			return predict(example)[1];
+		}
+
+		/**
+		 * @return {the most likely label, its log probability}
+		 */
+		private double[] predict(Example example) {
+			Set<Integer> exampleFeatures = example.getFeatureSet();
+			double maxLogProb = -Double.MAX_VALUE;
+			double prediction = -1;
+
+			for (int l = 0; l < labels.length; l++) {
+				double logProb = getLogProb(exampleFeatures, l);
+				if (logProb > maxLogProb) {
+					maxLogProb = logProb;
+					prediction = labels[l];
+				}
+			}
+
+			return new double[] { prediction, maxLogProb };
+		}
+
+		/**
+		 * Same as NBClassifierOld.getLogProb
+		 */
+		private double getLogProb(Set<Integer> exampleFeatures, int l) {
+			double prob = Math.log10((double) labelCounts[l] / (double) totalCount);
+			if (onlyPosFeatures) {
+				for (int f : exampleFeatures) {
+					prob += Math.log10(getFeatureProb(f, l));
+				}
+			} else {
+				for (int f : allFeatures) {
+					if (prob == 0) {
+						return Double.NEGATIVE_INFINITY;
+					}
+
+					if (exampleFeatures.contains(f)) {
+						prob += Math.log10(getFeatureProb(f, l));
+					} else {
+						prob += Math.log10(1 - getFeatureProb(f, l));
+					}
+				}
+			}
+			return prob;
+		}
+
+		private double getFeatureProb(int featureIndex, int l) {
+			int i = Arrays.binarySearch(features[l], featureIndex);
+			int count = i < 0 ? 0 : featureCounts[l][i];
+			return ((double) count + lambda) / ((double) labelCounts[l] + 2 * lambda);
+		}
+
+		@Override
+		public long memoryFootprint() {
+			long bytes = OBJECT_BYTES + Model.arrayBytes(labels.length, 8) + Model.arrayBytes(labelCounts.length, 4)
+					+ Model.arrayBytes(allFeatures.length, 4) + 2 * Model.arrayBytes(features.length, 8);
+			for (int l = 0; l < labels.length; l++) {
+				bytes += Model.arrayBytes(features[l].length, 4) + Model.arrayBytes(featureCounts[l].length, 4);
+			}
+			return bytes;
+		}
+	}
 }
@@ -0,0 +1,473 @@
+package ml.classifiers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import ml.data.Example;
+
+/**
+ * A compact, read-only Naive Bayes model backed by a single byte buffer. The
+ * buffer has the same layout in memory as it does on disk, so a saved model
+ * can be memory-mapped and used straight away without any parsing.
+ *
+ * Layout (big-endian):
+ *
+ * <pre>
+ * header:     int magic, int version, int numLabels (L), int numFeatures (V),
+ *             int positiveOnly, double lambda
+ * labels:     double[L]  label ids, in the order they are scored
+ * priors:     float[L]   log10 p(y)
+ * unseen:     float[L]   log10 p(x|y) for a feature that isn't in the vocabulary
+ * absent:     double[L]  finite part of sum over all features of log10(1 - p(x|y))
+ *             int[L]     number of features where log10(1 - p(x|y)) = -inf
+ * features:   int[V]     feature indices, sorted
+ * logProb:    float[L*V] log10 p(x|y), one row per label
+ * logNotProb: float[L*V] log10(1 - p(x|y)), only when positiveOnly == 0
+ * vocabulary: V x (int length, UTF-8 bytes)
+ * </pre>
+ *
+ * All log probabilities are with the smoothing (lambda) that was set when the
+ * model was compiled.
+ */
+public class NBModel implements Model {
+	private static final int MAGIC = 0x4E424D31; // "NBM1"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 5 * 4 + 8;
+
+	private final ByteBuffer buffer;
+	private final int numLabels;
+	private final int numFeatures;
+	private final boolean positiveOnly;
+	private final double lambda;
+
+	private final double[] labels;
+	private final float[] logPriors;
+	private final float[] logUnseen;
+	private final double[] absentSums;
+	private final int[] absentNegInf;
+
+	private final IntBuffer featureIds;
+	private final FloatBuffer logProbs;
+	private final FloatBuffer logNotProbs;
+	private final int vocabularyOffset;
+
+	// true if the feature indices are exactly 0..V-1, so no search is needed
+	private final boolean denseFeatures;
+
+	/**
+	 * Wrap a buffer containing a model in the layout described above.
+	 *
+	 * @param buffer
+	 */
+	NBModel(ByteBuffer buffer) {
+		this.buffer = buffer;
+
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new RuntimeException("Not a Naive Bayes model file");
+		}
+
+		numLabels = buffer.getInt(8);
+		numFeatures = buffer.getInt(12);
+		positiveOnly = buffer.getInt(16) != 0;
+		lambda = buffer.getDouble(20);
+
+		int offset = HEADER_BYTES;
+		labels = new double[numLabels];
+		for (int i = 0; i < numLabels; i++, offset += 8) {
+			labels[i] = buffer.getDouble(offset);
+		}
+		logPriors = new float[numLabels];
+		for (int i = 0; i < numLabels; i++, offset += 4) {
+			logPriors[i] = buffer.getFloat(offset);
+		}
+		logUnseen = new float[numLabels];
+		for (int i = 0; i < numLabels; i++, offset += 4) {
+			logUnseen[i] = buffer.getFloat(offset);
+		}
+		absentSums = new double[numLabels];
+		for (int i = 0; i < numLabels; i++, offset += 8) {
+			absentSums[i] = buffer.getDouble(offset);
+		}
+		absentNegInf = new int[numLabels];
+		for (int i = 0; i < numLabels; i++, offset += 4) {
+			absentNegInf[i] = buffer.getInt(offset);
+		}
+
+		featureIds = slice(buffer, offset, numFeatures * 4).asIntBuffer();
+		offset += numFeatures * 4;
+
+		int tableBytes = numLabels * numFeatures * 4;
+		logProbs = slice(buffer, offset, tableBytes).asFloatBuffer();
+		offset += tableBytes;
+
+		if (positiveOnly) {
+			logNotProbs = null;
+		} else {
+			logNotProbs = slice(buffer, offset, tableBytes).asFloatBuffer();
+			offset += tableBytes;
+		}
+		vocabularyOffset = offset;
+
+		denseFeatures = numFeatures == 0
+				|| (featureIds.get(0) == 0 && featureIds.get(numFeatures - 1) == numFeatures - 1);
+	}
+
+	/**
+	 * Build a model from the probability tables. Rows of logProbs and logNotProbs
+	 * are labels, columns are the (sorted) feature indices.
+	 *
+	 * @param labels       the label ids
+	 * @param logPriors    log10 p(y) for each label
+	 * @param logUnseen    log10 p(x|y) for features outside of the vocabulary
+	 * @param features     the sorted feature indices
+	 * @param words        the word for each feature index (may contain nulls)
+	 * @param logProbs     log10 p(x|y)
+	 * @param logNotProbs  log10(1 - p(x|y)), ignored if positiveOnly
+	 * @param positiveOnly whether only the features in an example are scored
+	 * @param lambda       the smoothing used to compute the tables
+	 * @return the model
+	 */
+	static NBModel compile(double[] labels, double[] logPriors, double[] logUnseen, int[] features, String[] words,
+			double[][] logProbs, double[][] logNotProbs, boolean positiveOnly, double lambda) {
+		int numLabels = labels.length;
+		int numFeatures = features.length;
+
+		byte[][] encoded = new byte[numFeatures][];
+		int vocabularyBytes = 0;
+		for (int j = 0; j < numFeatures; j++) {
+			encoded[j] = (words[j] == null ? "" : words[j]).getBytes(StandardCharsets.UTF_8);
+			vocabularyBytes += 4 + encoded[j].length;
+		}
+
+		int tables = positiveOnly ? 1 : 2;
+		long size = HEADER_BYTES + numLabels * (8L + 4 + 4 + 8 + 4) + numFeatures * 4L
+				+ tables * (long) numLabels * numFeatures * 4 + vocabularyBytes;
+		if (size > Integer.MAX_VALUE) {
+			throw new RuntimeException("Model too large to store: " + size + " bytes");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(numLabels).putInt(numFeatures).putInt(positiveOnly ? 1 : 0)
+				.putDouble(lambda);
+
+		for (int i = 0; i < numLabels; i++) {
+			buffer.putDouble(labels[i]);
+		}
+		for (int i = 0; i < numLabels; i++) {
+			buffer.putFloat((float) logPriors[i]);
+		}
+		for (int i = 0; i < numLabels; i++) {
+			buffer.putFloat((float) logUnseen[i]);
+		}
+
+		// the "all features absent" sum, keeping track of -inf terms separately so
+		// that we can take present features back out of it
+		for (int i = 0; i < numLabels; i++) {
+			double sum = 0;
+			if (!positiveOnly) {
+				for (double v : logNotProbs[i]) {
+					if (v != Double.NEGATIVE_INFINITY) {
+						sum += (float) v;
+					}
+				}
+			}
+			buffer.putDouble(sum);
+		}
+		for (int i = 0; i < numLabels; i++) {
+			int count = 0;
+			if (!positiveOnly) {
+				for (double v : logNotProbs[i]) {
+					if (v == Double.NEGATIVE_INFINITY) {
+						count++;
+					}
+				}
+			}
+			buffer.putInt(count);
+		}
+
+		for (int f : features) {
+			buffer.putInt(f);
+		}
+		for (int i = 0; i < numLabels; i++) {
+			for (int j = 0; j < numFeatures; j++) {
+				buffer.putFloat((float) logProbs[i][j]);
+			}
+		}
+		if (!positiveOnly) {
+			for (int i = 0; i < numLabels; i++) {
+				for (int j = 0; j < numFeatures; j++) {
+					buffer.putFloat((float) logNotProbs[i][j]);
+				}
+			}
+		}
+		for (byte[] word : encoded) {
+			buffer.putInt(word.length);
+			buffer.put(word);
+		}
+
+		buffer.flip();
+		return new NBModel(buffer);
+	}
+
+	/**
+	 * Memory-map a model saved with {@link #save(String)}.
+	 *
+	 * @param filename
+	 * @return the model
+	 * @throws IOException
+	 */
+	public static NBModel load(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			return new NBModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Write this model to filename
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void save(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer out = buffer.duplicate();
+			out.clear();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of labels in the model
+	 */
+	public int getNumLabels() {
+		return numLabels;
+	}
+
+	/**
+	 * @param labelIndex
+	 * @return the label id for labelIndex
+	 */
+	public double getLabel(int labelIndex) {
+		return labels[labelIndex];
+	}
+
+	/**
+	 * @param label
+	 * @return the index of label in the model, or -1 if the model doesn't know it
+	 */
+	public int getLabelIndex(double label) {
+		for (int i = 0; i < numLabels; i++) {
+			if (labels[i] == label) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the smoothing the tables were computed with
+	 */
+	public double getLambda() {
+		return lambda;
+	}
+
+	/**
+	 * @return whether only the features in an example are scored
+	 */
+	public boolean usesOnlyPositiveFeatures() {
+		return positiveOnly;
+	}
+
+	/**
+	 * Predict the most likely label for the example
+	 *
+	 * @param example
+	 * @return the label
+	 */
+	@Override
+	public double classify(Example example) {
+		int best = classifyIndex(example);
+		return best < 0 ? 0.0 : labels[best];
+	}
+
+	/**
+	 * @param example
+	 * @return the log10 probability of the example together with its predicted
+	 *         label
+	 */
+	@Override
+	public double confidence(Example example) {
+		return getPredictionLogProb(example, classifyIndex(example));
+	}
+
+	/**
+	 * Classify all the examples in parallel. Each example's predicted label and
+	 * its log probability come from the same pass over the labels.
+	 *
+	 * @param examples
+	 * @return {predictions, confidences (log probabilities)}, indexed like
+	 *         examples
+	 */
+	@Override
+	public double[][] classify(final List<Example> examples) {
+		final double[][] results = new double[2][examples.size()];
+
+		IntStream.range(0, examples.size()).parallel().forEach(i -> {
+			Example example = examples.get(i);
+			int best = classifyIndex(example);
+			results[0][i] = best >= 0 ? labels[best] : 0.0;
+			results[1][i] = getPredictionLogProb(example, best);
+		});
+
+		return results;
+	}
+
+	/**
+	 * @param example
+	 * @param best the index of the example's most likely label, or -1
+	 * @return the log10 probability of the example together with its predicted
+	 *         label (label 0.0 when every label has probability 0)
+	 */
+	private double getPredictionLogProb(Example example, int best) {
+		int labelIndex = best >= 0 ? best : getLabelIndex(0.0);
+		return labelIndex < 0 ? Double.NEGATIVE_INFINITY : getLogProb(example, labelIndex);
+	}
+
+	/**
+	 * @return the size of the buffer (whether it's on the heap or mapped from a
+	 *         file) plus the per-label arrays
+	 */
+	@Override
+	public long memoryFootprint() {
+		return buffer.capacity() + Model.arrayBytes(numLabels, 8) * 2 + Model.arrayBytes(numLabels, 4) * 3;
+	}
+
+	/**
+	 * @param example
+	 * @return the index of the most likely label for the example, or -1 if every
+	 *         label has probability 0
+	 */
+	public int classifyIndex(Example example) {
+		double max = -Double.MAX_VALUE;
+		int best = -1;
+
+		for (int i = 0; i < numLabels; i++) {
+			double prob = getLogProb(example, i);
+			if (prob > max) {
+				max = prob;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the log10 probability of the example together with the label at
+	 * labelIndex
+	 *
+	 * @param example
+	 * @param labelIndex
+	 * @return log10 p(x, y)
+	 */
+	public double getLogProb(Example example, int labelIndex) {
+		int row = labelIndex * numFeatures;
+		double sum = 0.0;
+		double absent = absentSums[labelIndex];
+		int absentInf = absentNegInf[labelIndex];
+
+		for (Integer featureIndex : example.getFeatureSet()) {
+			int column = getColumn(featureIndex);
+
+			if (column < 0) {
+				sum += logUnseen[labelIndex];
+			} else {
+				sum += logProbs.get(row + column);
+
+				// this feature isn't absent, so take it back out of the absent sum
+				if (!positiveOnly) {
+					float notProb = logNotProbs.get(row + column);
+					if (notProb == Float.NEGATIVE_INFINITY) {
+						absentInf--;
+					} else {
+						absent -= notProb;
+					}
+				}
+			}
+		}
+
+		if (!positiveOnly) {
+			sum += absentInf > 0 ? Double.NEGATIVE_INFINITY : absent;
+		}
+		return sum + logPriors[labelIndex];
+	}
+
+	/**
+	 * @param featureIndex
+	 * @return the column of featureIndex in the tables, or -1 if it's not in the
+	 *         vocabulary
+	 */
+	private int getColumn(int featureIndex) {
+		if (denseFeatures) {
+			return featureIndex >= 0 && featureIndex < numFeatures ? featureIndex : -1;
+		}
+
+		int lo = 0;
+		int hi = numFeatures - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int f = featureIds.get(mid);
+			if (f < featureIndex) {
+				lo = mid + 1;
+			} else if (f > featureIndex) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Decode the vocabulary stored with the model. This walks the whole vocabulary
+	 * section so it should only be done once (e.g. for reporting).
+	 *
+	 * @return the mapping from feature index to word
+	 */
+	public HashMap<Integer, String> getFeatureMap() {
+		HashMap<Integer, String> featureMap = new HashMap<Integer, String>();
+		int offset = vocabularyOffset;
+
+		for (int j = 0; j < numFeatures; j++) {
+			int length = buffer.getInt(offset);
+			byte[] word = new byte[length];
+			ByteBuffer in = buffer.duplicate();
+			in.position(offset + 4);
+			in.get(word);
+			featureMap.put(featureIds.get(j), new String(word, StandardCharsets.UTF_8));
+			offset += 4 + length;
+		}
+		return featureMap;
+	}
+
+	/**
+	 * Get a view of length bytes of buffer starting at offset
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+}
@@ -0,0 +1,260 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * Multiclass classifier that trains one binary linear classifier per label,
+ * each separating that label from all the others, and predicts the label whose
+ * classifier gives the highest score.
+ *
+ * The binary classifiers are trained concurrently on the same data set (which
+ * they only read), so with enough cores training takes about as long as
+ * training one of them. After training their weights are copied into one
+ * feature-major matrix, so all the labels are scored in a single pass over an
+ * example's features.
+ */
+public class OneVsRestClassifier implements Classifier {
+	// makes a new, untrained binary classifier
+	private Supplier<? extends LinearClassifier> factory;
+
+	// the weights of all the binary classifiers after training
+	private OneVsRestModel model;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Use GradientDescentClassifiers with their default settings
+	 */
+	public OneVsRestClassifier() {
+		this(GradientDescentClassifier::new);
+	}
+
+	/**
+	 * @param factory makes the binary classifiers, one per label, with whatever
+	 *                settings they should be trained with
+	 */
+	public OneVsRestClassifier(Supplier<? extends LinearClassifier> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Set the max number of binary classifiers to train at once
+	 *
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	@Override
+	public void train(DataSet data) {
+		double[] labels = new double[data.getLabels().size()];
+		int i = 0;
+		for (Double label : data.getLabels()) {
+			labels[i++] = label;
+		}
+		Arrays.sort(labels);
+
+		final DataSet trainingData = data;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, labels.length)));
+		LinearClassifier[] classifiers = new LinearClassifier[labels.length];
+
+		try {
+			ArrayList<Future<?>> trained = new ArrayList<Future<?>>();
+			for (int l = 0; l < labels.length; l++) {
+				final LinearClassifier classifier = factory.get();
+				classifier.setPositiveLabel(labels[l]);
+				classifiers[l] = classifier;
+
+				trained.add(pool.submit(new Runnable() {
+					public void run() {
+						classifier.train(trainingData);
+					}
+				}));
+			}
+
+			for (Future<?> f : trained) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		int maxFeature = -1;
+		for (Integer featureIndex : data.getAllFeatureIndices()) {
+			maxFeature = Math.max(maxFeature, featureIndex);
+		}
+
+		double[] weights = new double[(maxFeature + 1) * labels.length];
+		double[] biases = new double[labels.length];
+		for (int l = 0; l < labels.length; l++) {
+			for (Integer featureIndex : data.getAllFeatureIndices()) {
+				weights[featureIndex * labels.length + l] = classifiers[l].getWeight(featureIndex);
+			}
+			biases[l] = classifiers[l].getBias();
+		}
+
+		model = new OneVsRestModel(labels, weights, biases);
+	}
+
+	@Override
+	public double classify(Example example) {
+		return model.classify(example);
+	}
+
+	/**
+	 * The margin between the highest and the second highest score
+	 */
+	@Override
+	public double confidence(Example example) {
+		return model.confidence(example);
+	}
+
+	@Override
+	public double[][] classify(List<Example> examples) {
+		return model.classify(examples);
+	}
+
+	/**
+	 * The binary classifiers' weights, which are all the classifier keeps after
+	 * training anyway
+	 */
+	@Override
+	public Model getModel() {
+		return model;
+	}
+
+	/**
+	 * The weights of all the binary classifiers, scoring all the labels in a
+	 * single pass over an example's features
+	 */
+	private static final class OneVsRestModel implements Model {
+		// the labels, in increasing order
+		private final double[] labels;
+
+		/**
+		 * the weights of all the binary classifiers, feature-major:
+		 * weights[featureIndex * labels.length + l] is the weight of featureIndex in
+		 * the classifier for labels[l]
+		 */
+		private final double[] weights;
+		private final double[] biases;
+
+		public OneVsRestModel(double[] labels, double[] weights, double[] biases) {
+			this.labels = labels;
+			this.weights = weights;
+			this.biases = biases;
+		}
+
+		/**
+		 * Score the example with every binary classifier
+		 *
+		 * @param example
+		 * @return the scores, indexed like labels
+		 */
+		private double[] getScores(Example example) {
+			int numLabels = labels.length;
+			double[] scores = biases.clone();
+
+			int[] features = example.getSparseIndices();
+			double[] values = example.getSparseValues();
+			for (int i = 0; i < features.length; i++) {
+				int offset = features[i] * numLabels;
+				if (features[i] >= 0 && offset < weights.length) {
+					double value = values[i];
+					for (int l = 0; l < numLabels; l++) {
+						scores[l] += weights[offset + l] * value;
+					}
+				}
+			}
+
+			return scores;
+		}
+
+		/**
+		 * @param scores
+		 * @return the index of the highest score, ties going to the smaller label
+		 */
+		private static int argMax(double[] scores) {
+			int best = 0;
+			for (int l = 1; l < scores.length; l++) {
+				if (scores[l] > scores[best]) {
+					best = l;
+				}
+			}
+			return best;
+		}
+
+		@Override
+		public double classify(Example example) {
+			return labels[argMax(getScores(example))];
+		}
+
+		/**
+		 * The margin between the highest and the second highest score
+		 */
+		@Override
+		public double confidence(Example example) {
+			return margin(getScores(example));
+		}
+
+		/**
+		 * Classify all the examples in parallel, scoring each example once for both
+		 * its prediction and its confidence
+		 *
+		 * @param examples
+		 * @return {predictions, confidences}, indexed like examples
+		 */
+		@Override
+		public double[][] classify(final List<Example> examples) {
+			final double[][] results = new double[2][examples.size()];
+
+			IntStream.range(0, examples.size()).parallel().forEach(i -> {
+				double[] scores = getScores(examples.get(i));
+				results[0][i] = labels[argMax(scores)];
+				results[1][i] = margin(scores);
+			});
+
+			return results;
+		}
+
+		/**
+		 * @param scores
+		 * @return the highest score minus the second highest
+		 */
+		private static double margin(double[] scores) {
+			int best = argMax(scores);
+
+			double second = Double.NEGATIVE_INFINITY;
+			for (int l = 0; l < scores.length; l++) {
+				if (l != best && scores[l] > second) {
+					second = scores[l];
+				}
+			}
+
+			return second == Double.NEGATIVE_INFINITY ? Math.abs(scores[best]) : scores[best] - second;
+		}
+
+		@Override
+		public long memoryFootprint() {
+			return OBJECT_BYTES + Model.arrayBytes(labels.length, 8) + Model.arrayBytes(weights.length, 8)
+					+ Model.arrayBytes(biases.length, 8);
+		}
+	}
+}
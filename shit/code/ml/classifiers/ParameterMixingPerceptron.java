@@ -0,0 +1,484 @@
+package ml.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ml.data.DataSet;
+import ml.data.DataSetSplit;
+import ml.data.Example;
+
+/**
+ * Perceptron trained by iterative parameter mixing (McDonald et al., 2010).
+ * The training data is split into shards. Each iteration, every shard runs one
+ * perceptron pass over its examples starting from the current weights, and the
+ * weights the shards end up with are averaged to give the weights for the next
+ * iteration. The averaged version (setAveraged) is the parameter mixing
+ * counterpart of AveragePerceptronClassifier.
+ *
+ * The shards can be trained by threads in this JVM (THREADS) or by separate
+ * worker processes on this machine that get their shard and the weights over
+ * a socket (PROCESSES).
+ */
+public class ParameterMixingPerceptron extends PerceptronClassifier {
+	// constants for where the shards are trained
+	public static final int THREADS = 0;
+	public static final int PROCESSES = 1;
+
+	private static final String WORKER_FLAG = "-worker";
+
+	// how long to wait for the worker processes to connect
+	private static final int CONNECT_TIMEOUT = 30000;
+
+	private int mode = THREADS;
+	private int shards = Runtime.getRuntime().availableProcessors();
+	private boolean averaged = false;
+	private Long seed = null;
+
+	/**
+	 * Set how the shards are trained
+	 *
+	 * @param mode THREADS or PROCESSES
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Set the number of shards (and so threads or worker processes) to train with
+	 *
+	 * @param shards
+	 */
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	/**
+	 * If averaged, the final weights are the average of the weights after every
+	 * example, like AveragePerceptronClassifier, rather than the mixed weights
+	 * from the last iteration. Each shard also returns the average of its weights
+	 * over its pass, and these are mixed and then averaged over the iterations.
+	 * The next iteration still starts from the mixed (unaveraged) weights.
+	 *
+	 * @param averaged
+	 */
+	public void setAveraged(boolean averaged) {
+		this.averaged = averaged;
+	}
+
+	/**
+	 * Set the seed used to split and shuffle the examples, if we want
+	 * reproducible training
+	 *
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public void train(DataSet data) {
+		initializeWeights(data.getAllFeatureIndices());
+
+		int dimension = 0;
+		for (Integer featureIndex : data.getAllFeatureIndices()) {
+			dimension = Math.max(dimension, featureIndex + 1);
+		}
+
+		Random random = seed == null ? new Random() : new Random(seed);
+		ArrayList<Example> training = new ArrayList<Example>(data.getData());
+		Collections.shuffle(training, random);
+
+		int numShards = Math.max(1, Math.min(shards, training.size()));
+		Shard[] split = new Shard[numShards];
+		for (int s = 0; s < numShards; s++) {
+			ArrayList<Example> examples = new ArrayList<Example>();
+			for (int i = s; i < training.size(); i += numShards) {
+				examples.add(training.get(i));
+			}
+			split[s] = new Shard(examples, random.nextLong());
+		}
+
+		// the weights, with the bias as the last entry
+		double[] mixed = new double[dimension + 1];
+		double[] sum = averaged ? new double[dimension + 1] : null;
+
+		if (mode == PROCESSES) {
+			trainProcesses(split, mixed, sum);
+		} else {
+			trainThreads(split, mixed, sum);
+		}
+
+		double[] result = mixed;
+		if (averaged) {
+			for (int j = 0; j < sum.length; j++) {
+				sum[j] /= iterations;
+			}
+			result = sum;
+		}
+
+		for (Integer featureIndex : weights.keySet()) {
+			weights.put(featureIndex, result[featureIndex]);
+		}
+		b = result[dimension];
+	}
+
+	private void trainThreads(final Shard[] split, double[] mixed, double[] sum) {
+		ExecutorService pool = Executors.newFixedThreadPool(split.length);
+
+		try {
+			for (int it = 0; it < iterations; it++) {
+				final double[] start = mixed;
+
+				ArrayList<Future<double[][]>> results = new ArrayList<Future<double[][]>>();
+				for (final Shard shard : split) {
+					results.add(pool.submit(() -> shard.epoch(start.clone())));
+				}
+
+				double[][][] shardWeights = new double[split.length][][];
+				for (int s = 0; s < split.length; s++) {
+					shardWeights[s] = results.get(s).get();
+				}
+
+				mix(shardWeights, mixed, sum);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void trainProcesses(Shard[] split, double[] mixed, double[] sum) {
+		Process[] workers = new Process[split.length];
+		Socket[] sockets = new Socket[split.length];
+
+		try (ServerSocket server = new ServerSocket(0, split.length, InetAddress.getLoopbackAddress())) {
+			server.setSoTimeout(CONNECT_TIMEOUT);
+
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int s = 0; s < split.length; s++) {
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						ParameterMixingPerceptron.class.getName(), WORKER_FLAG, Integer.toString(server.getLocalPort()));
+				builder.inheritIO();
+				workers[s] = builder.start();
+			}
+
+			DataOutputStream[] out = new DataOutputStream[split.length];
+			DataInputStream[] in = new DataInputStream[split.length];
+			for (int s = 0; s < split.length; s++) {
+				sockets[s] = server.accept();
+				out[s] = new DataOutputStream(new BufferedOutputStream(sockets[s].getOutputStream()));
+				in[s] = new DataInputStream(new BufferedInputStream(sockets[s].getInputStream()));
+				split[s].write(out[s], mixed.length);
+				out[s].flush();
+			}
+
+			for (int it = 0; it < iterations; it++) {
+				// send the weights to every worker before waiting on any of them
+				for (int s = 0; s < split.length; s++) {
+					out[s].writeBoolean(true);
+					writeWeights(out[s], mixed);
+					out[s].flush();
+				}
+
+				double[][][] shardWeights = new double[split.length][2][];
+				for (int s = 0; s < split.length; s++) {
+					shardWeights[s][0] = readWeights(in[s], mixed.length);
+					if (averaged) {
+						shardWeights[s][1] = readWeights(in[s], mixed.length);
+					}
+				}
+
+				mix(shardWeights, mixed, sum);
+			}
+
+			for (int s = 0; s < split.length; s++) {
+				out[s].writeBoolean(false);
+				out[s].flush();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Parameter mixing with worker processes failed", e);
+		} finally {
+			for (int s = 0; s < split.length; s++) {
+				try {
+					if (sockets[s] != null) {
+						sockets[s].close();
+					}
+				} catch (IOException e) {
+					// nothing left to do with it
+				}
+				if (workers[s] != null) {
+					try {
+						workers[s].waitFor();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						workers[s].destroy();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Average the weights from the shards into mixed, and if we're averaging, add
+	 * the average of the shards' averaged weights into sum
+	 *
+	 * @param shardWeights for each shard, {its weights, its averaged weights (or
+	 *                     null)}
+	 */
+	private static void mix(double[][][] shardWeights, double[] mixed, double[] sum) {
+		for (int j = 0; j < mixed.length; j++) {
+			double total = 0;
+			double averageTotal = 0;
+			for (double[][] w : shardWeights) {
+				total += w[0][j];
+				if (sum != null) {
+					averageTotal += w[1][j];
+				}
+			}
+			mixed[j] = total / shardWeights.length;
+
+			if (sum != null) {
+				sum[j] += averageTotal / shardWeights.length;
+			}
+		}
+	}
+
+	private static void writeWeights(DataOutputStream out, double[] w) throws IOException {
+		for (double value : w) {
+			out.writeDouble(value);
+		}
+	}
+
+	private static double[] readWeights(DataInputStream in, int length) throws IOException {
+		double[] w = new double[length];
+		for (int j = 0; j < length; j++) {
+			w[j] = in.readDouble();
+		}
+		return w;
+	}
+
+	/**
+	 * One shard of the training data, stored as sparse arrays so it can be sent
+	 * to a worker process.
+	 */
+	private class Shard {
+		private int[][] features;
+		private double[][] values;
+		private double[] labels;
+		private long seed;
+		private Random random;
+
+		public Shard(ArrayList<Example> examples, long seed) {
+			int n = examples.size();
+			features = new int[n][];
+			values = new double[n][];
+			labels = new double[n];
+			for (int i = 0; i < n; i++) {
+				Example e = examples.get(i);
+				features[i] = e.getSparseIndices();
+				values[i] = e.getSparseValues();
+				labels[i] = getTrainingLabel(e);
+			}
+			this.seed = seed;
+			random = new Random(seed);
+		}
+
+		/**
+		 * Run one perceptron pass over the shard in a random order
+		 *
+		 * @param w the starting weights, with the bias last; updated in place
+		 * @return {w, the average of the weights after each example (null if we're
+		 *         not averaging)}
+		 */
+		public double[][] epoch(double[] w) {
+			double[] average = averaged ? new double[w.length] : null;
+			perceptronEpoch(features, values, labels, w, average, random);
+			return new double[][] { w, average };
+		}
+
+		/**
+		 * Send the shard to a worker process
+		 *
+		 * @param out
+		 * @param numWeights the length of the weight vectors, bias included
+		 */
+		public void write(DataOutputStream out, int numWeights) throws IOException {
+			out.writeLong(seed);
+			out.writeBoolean(averaged);
+			out.writeInt(numWeights);
+			out.writeInt(labels.length);
+			for (int i = 0; i < labels.length; i++) {
+				out.writeDouble(labels[i]);
+				out.writeInt(features[i].length);
+				for (int k = 0; k < features[i].length; k++) {
+					out.writeInt(features[i][k]);
+					out.writeDouble(values[i][k]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One perceptron pass over the examples in a random order. The average of the
+	 * weights after each example is found the same way as in
+	 * AveragePerceptronClassifier: with u = sum over mistakes of (step * change in
+	 * weight), the sum of the n weight vectors is n*w - u.
+	 *
+	 * @param features the examples' feature indices
+	 * @param values   the examples' feature values
+	 * @param labels   the examples' labels (+1/-1)
+	 * @param w        the weights, with the bias last; updated in place
+	 * @param average  where to put the average weights, or null
+	 * @param random
+	 * @return w
+	 */
+	private static double[] perceptronEpoch(int[][] features, double[][] values, double[] labels, double[] w,
+			double[] average, Random random) {
+		int bias = w.length - 1;
+		double[] timedUpdates = average == null ? null : new double[w.length];
+
+		int[] order = new int[labels.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+
+		int step = 0;
+		for (int i : order) {
+			int[] f = features[i];
+			double[] v = values[i];
+			double label = labels[i];
+
+			double sum = w[bias];
+			for (int k = 0; k < f.length; k++) {
+				sum += w[f[k]] * v[k];
+			}
+
+			double prediction = sum > 0 ? 1.0 : (sum < 0 ? -1.0 : 0);
+			if (prediction != label) {
+				for (int k = 0; k < f.length; k++) {
+					w[f[k]] += v[k] * label;
+					if (timedUpdates != null) {
+						timedUpdates[f[k]] += step * v[k] * label;
+					}
+				}
+				w[bias] += label;
+				if (timedUpdates != null) {
+					timedUpdates[bias] += step * label;
+				}
+			}
+			step++;
+		}
+
+		if (average != null) {
+			for (int j = 0; j < w.length; j++) {
+				average[j] = step == 0 ? w[j] : w[j] - timedUpdates[j] / step;
+			}
+		}
+
+		return w;
+	}
+
+	/**
+	 * Worker process: connect back to the coordinator, read our shard, then run
+	 * one epoch on it for each set of weights we're sent.
+	 */
+	private static void runWorker(int port) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			Random random = new Random(in.readLong());
+			boolean averaged = in.readBoolean();
+			int numWeights = in.readInt();
+			int n = in.readInt();
+			int[][] features = new int[n][];
+			double[][] values = new double[n][];
+			double[] labels = new double[n];
+			for (int i = 0; i < n; i++) {
+				labels[i] = in.readDouble();
+				int nnz = in.readInt();
+				features[i] = new int[nnz];
+				values[i] = new double[nnz];
+				for (int k = 0; k < nnz; k++) {
+					features[i][k] = in.readInt();
+					values[i][k] = in.readDouble();
+				}
+			}
+
+			while (in.readBoolean()) {
+				double[] w = readWeights(in, numWeights);
+				double[] average = averaged ? new double[numWeights] : null;
+				writeWeights(out, perceptronEpoch(features, values, labels, w, average, random));
+				if (averaged) {
+					writeWeights(out, average);
+				}
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * With no arguments, compare the plain and averaged versions, trained with
+	 * threads and with worker processes, on an 80/20 split of the titanic data.
+	 * The coordinator starts the workers with WORKER_FLAG and its port.
+	 *
+	 * @param args nothing, or WORKER_FLAG and the coordinator's port
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 2 && args[0].equals(WORKER_FLAG)) {
+			runWorker(Integer.parseInt(args[1]));
+			return;
+		} else if (args.length > 0) {
+			System.err.println("Usage: java ml.classifiers.ParameterMixingPerceptron [" + WORKER_FLAG + " port]");
+			return;
+		}
+
+		DataSet data = new DataSet("./data/titanic-train.csv", DataSet.CSVFILE);
+		DataSetSplit split = data.split(0.8);
+
+		for (int mode : new int[] { THREADS, PROCESSES }) {
+			for (boolean averaged : new boolean[] { false, true }) {
+				ParameterMixingPerceptron classifier = new ParameterMixingPerceptron();
+				classifier.setPositiveLabel(1.0);
+				classifier.setMode(mode);
+				classifier.setAveraged(averaged);
+				classifier.setSeed(0);
+				classifier.train(split.getTrain());
+
+				int correct = 0;
+				for (Example e : split.getTest().getData()) {
+					if (classifier.classify(e) == (e.getLabel() == 1.0 ? 1.0 : -1.0)) {
+						correct++;
+					}
+				}
+
+				System.out.println((mode == THREADS ? "Threads" : "Processes") + (averaged ? ", averaged" : "")
+						+ ": accuracy " + correct / (double) split.getTest().getData().size());
+			}
+		}
+	}
+}
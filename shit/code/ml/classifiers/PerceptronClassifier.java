@@ -3,8 +3,10 @@ package ml.classifiers;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 import ml.data.DataSet;
 import ml.data.Example;
@@ -15,11 +17,14 @@ import ml.data.Example;
  * @author dkauchak
  *
  */
-public class PerceptronClassifier implements Classifier {
+public class PerceptronClassifier implements LinearClassifier {
 	protected HashMap<Integer, Double> weights; // the feature weights
 	protected double b = 0; // the intersect weight
 	
 	protected int iterations = 10;
+	
+	// if set, examples with this label are positive and all others negative
+	protected Double positiveLabel = null;
 		
 	/**
 	 * Get a weight vector over the set of features with each weight
@@ -57,6 +62,26 @@ public class PerceptronClassifier implements Classifier {
 		this.iterations = iterations;
 	}
 	
+	@Override
+	public void setPositiveLabel(double label){
+		positiveLabel = label;
+	}
+	
+	/**
+	 * Get the label to train on for this example: its actual label, or +1/-1 if
+	 * we're training one label against the rest
+	 * 
+	 * @param e
+	 * @return
+	 */
+	protected double getTrainingLabel(Example e){
+		if( positiveLabel == null ){
+			return e.getLabel();
+		}
+		
+		return e.getLabel() == positiveLabel ? 1.0 : -1.0;
+	}
+	
 	public void train(DataSet data) {
 		initializeWeights(data.getAllFeatureIndices());
 		
@@ -66,8 +91,9 @@ public class PerceptronClassifier implements Classifier {
 			Collections.shuffle(training);
 			
 			for( Example e: training ){
-				if( getPrediction(e) != e.getLabel() ){
-					double label = e.getLabel();
+				double label = getTrainingLabel(e);
+				
+				if( getPrediction(e) != label ){
 					
 					// update the weights
 					//for( Integer featureIndex: weights.keySet() ){
@@ -94,6 +120,23 @@ public class PerceptronClassifier implements Classifier {
 	public double confidence(Example example) {
 		return Math.abs(getDistanceFromHyperplane(example, weights, b));
 	}
+	
+	/**
+	 * Classify all the examples in parallel, computing each example's distance
+	 * from the hyperplane once for both its prediction and its confidence
+	 */
+	@Override
+	public double[][] classify(final List<Example> examples){
+		final double[][] results = new double[2][examples.size()];
+		
+		IntStream.range(0, examples.size()).parallel().forEach(i -> {
+			double sum = getDistanceFromHyperplane(examples.get(i), weights, b);
+			results[0][i] = sum > 0 ? 1.0 : (sum < 0 ? -1.0 : 0);
+			results[1][i] = Math.abs(sum);
+		});
+		
+		return results;
+	}
 
 		
 	/**
@@ -138,6 +181,26 @@ public class PerceptronClassifier implements Classifier {
 		return sum;
 	}
 	
+	@Override
+	public double getWeight(int featureIndex){
+		Double w = weights.get(featureIndex);
+		return w == null ? 0 : w;
+	}
+	
+	@Override
+	public double getBias(){
+		return b;
+	}
+	
+	/**
+	 * Copy the current weights into a dense array, so the model doesn't share
+	 * the weight map that training keeps changing
+	 */
+	@Override
+	public Model getModel(){
+		return LinearModel.copyOf(this, weights.keySet());
+	}
+	
 	public String toString(){
 		StringBuffer buffer = new StringBuffer();
 		
@@ -1,6 +1,7 @@
 package ml.classifiers;
 
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import ml.data.DataSet;
 import ml.data.Example;
@@ -28,4 +29,24 @@ public class RandomClassifier implements Classifier{
 	public double confidence(Example example) {
 		return 1.0; // super confident!
 	}
+	
+	@Override
+	public Model getModel() {
+		return new Model(){
+			@Override
+			public double classify(Example example) {
+				return ThreadLocalRandom.current().nextInt(2) == 1? 1.0 : -1.0;
+			}
+			
+			@Override
+			public double confidence(Example example) {
+				return 1.0;
+			}
+			
+			@Override
+			public long memoryFootprint() {
+				return OBJECT_BYTES;
+			}
+		};
+	}
 }
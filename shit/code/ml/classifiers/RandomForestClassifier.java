@@ -0,0 +1,295 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * Random forest: an ensemble of decision trees, each trained on a bootstrap
+ * sample of the training data and only considering a random subset of the
+ * features at each node. The prediction is the label most of the trees vote
+ * for.
+ *
+ * The trees are trained concurrently. The bootstrap samples are arrays of
+ * example indices into the shared training data, so no examples are copied.
+ */
+public class RandomForestClassifier implements Classifier {
+	private int numTrees = 50;
+	private int depthLimit = Integer.MAX_VALUE;
+	private int featuresPerNode = 0; // 0 for sqrt(number of features)
+	private int splitType = DecisionTreeClassifier.ZERO_SPLITS;
+	private Long seed = null;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	// the trained trees and their labels
+	private RandomForestModel model;
+
+	/**
+	 * Set the number of trees in the forest
+	 *
+	 * @param numTrees
+	 */
+	public void setNumTrees(int numTrees) {
+		this.numTrees = numTrees;
+	}
+
+	/**
+	 * Set the maximum depth of each tree
+	 *
+	 * @param depthLimit
+	 */
+	public void setDepthLimit(int depthLimit) {
+		this.depthLimit = depthLimit;
+	}
+
+	/**
+	 * Set how many randomly chosen features each node considers splitting on. By
+	 * default it's the square root of the number of features.
+	 *
+	 * @param featuresPerNode
+	 */
+	public void setFeaturesPerNode(int featuresPerNode) {
+		this.featuresPerNode = featuresPerNode;
+	}
+
+	/**
+	 * Set the kind of splits the trees make
+	 *
+	 * @param splitType DecisionTreeClassifier.ZERO_SPLITS or THRESHOLD_SPLITS
+	 */
+	public void setSplitType(int splitType) {
+		this.splitType = splitType;
+	}
+
+	/**
+	 * Set the seed for the bootstrap samples and feature choices, if we want
+	 * reproducible training. By default the forest is different every time.
+	 *
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the number of trees to train at once
+	 *
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	@Override
+	public void train(final DataSet data) {
+		if (data.getData().size() == 0) {
+			throw new RuntimeException("Tried to train without any data");
+		}
+
+		double[] labels = new double[data.getLabels().size()];
+		int l = 0;
+		for (Double label : data.getLabels()) {
+			labels[l++] = label;
+		}
+		Arrays.sort(labels);
+
+		final int n = data.getData().size();
+		final int numFeatures = featuresPerNode > 0 ? featuresPerNode
+				: Math.max(1, (int) Math.round(Math.sqrt(data.getAllFeatureIndices().size())));
+
+		Random random = seed == null ? new Random() : new Random(seed);
+		final DecisionTreeClassifier[] trees = new DecisionTreeClassifier[numTrees];
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, numTrees)));
+
+		try {
+			ArrayList<Future<?>> trained = new ArrayList<Future<?>>();
+			for (int t = 0; t < numTrees; t++) {
+				final long treeSeed = random.nextLong();
+				final DecisionTreeClassifier tree = new DecisionTreeClassifier();
+				tree.setDepthLimit(depthLimit);
+				tree.setSplitType(splitType);
+				tree.setFeaturesPerNode(numFeatures, treeSeed);
+				// the trees are already built in parallel
+				tree.setThreads(1);
+				trees[t] = tree;
+
+				trained.add(pool.submit(new Runnable() {
+					public void run() {
+						// bootstrap sample: n examples drawn with replacement
+						Random treeRandom = new Random(treeSeed);
+						int[] sample = new int[n];
+						for (int i = 0; i < n; i++) {
+							sample[i] = treeRandom.nextInt(n);
+						}
+
+						tree.train(data, sample);
+					}
+				}));
+			}
+
+			for (Future<?> f : trained) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		DecisionTreeModel[] models = new DecisionTreeModel[numTrees];
+		for (int t = 0; t < numTrees; t++) {
+			models[t] = trees[t].getModel();
+		}
+		model = new RandomForestModel(labels, models);
+	}
+
+	@Override
+	public double classify(Example example) {
+		return model.classify(example);
+	}
+
+	/**
+	 * The fraction of the trees that voted for the predicted label
+	 */
+	@Override
+	public double confidence(Example example) {
+		return model.confidence(example);
+	}
+
+	@Override
+	public double[][] classify(List<Example> examples) {
+		return model.classify(examples);
+	}
+
+	/**
+	 * The trees' models, without the classifiers that trained them
+	 */
+	@Override
+	public Model getModel() {
+		return model;
+	}
+
+	/**
+	 * The trained trees, which vote on the label
+	 */
+	private static final class RandomForestModel implements Model {
+		// number of examples each tree classifies at once in batch classification
+		private static final int BATCH_BLOCK = 256;
+
+		// the labels in the training data, in increasing order
+		private final double[] labels;
+		private final DecisionTreeModel[] trees;
+
+		public RandomForestModel(double[] labels, DecisionTreeModel[] trees) {
+			this.labels = labels;
+			this.trees = trees;
+		}
+
+		@Override
+		public double classify(Example example) {
+			return vote(example)[0];
+		}
+
+		/**
+		 * The fraction of the trees that voted for the predicted label
+		 */
+		@Override
+		public double confidence(Example example) {
+			return vote(example)[1];
+		}
+
+		/**
+		 * Classify all the examples. Blocks of the examples are classified in
+		 * parallel, with each tree classifying the whole block at once.
+		 *
+		 * @param examples
+		 * @return {predicted labels, confidences (vote shares)}, indexed like
+		 *         examples
+		 */
+		@Override
+		public double[][] classify(final List<Example> examples) {
+			final int n = examples.size();
+			final double[][] results = new double[2][n];
+
+			IntStream.range(0, (n + BATCH_BLOCK - 1) / BATCH_BLOCK).parallel().forEach(block -> {
+				int start = block * BATCH_BLOCK;
+				int end = Math.min(n, start + BATCH_BLOCK);
+				List<Example> blockExamples = examples.subList(start, end);
+
+				int[][] votes = new int[end - start][labels.length];
+				for (DecisionTreeModel tree : trees) {
+					double[] predictions = tree.classify(blockExamples)[0];
+					for (int i = 0; i < predictions.length; i++) {
+						addVote(votes[i], predictions[i]);
+					}
+				}
+
+				for (int i = 0; i < votes.length; i++) {
+					double[] result = count(votes[i]);
+					results[0][start + i] = result[0];
+					results[1][start + i] = result[1];
+				}
+			});
+
+			return results;
+		}
+
+		/**
+		 * @param example
+		 * @return {the label with the most votes (ties going to the smaller label),
+		 *         the fraction of the votes it got}
+		 */
+		private double[] vote(Example example) {
+			int[] votes = new int[labels.length];
+			for (DecisionTreeModel tree : trees) {
+				addVote(votes, tree.classify(example));
+			}
+
+			return count(votes);
+		}
+
+		private void addVote(int[] votes, double label) {
+			int l = Arrays.binarySearch(labels, label);
+			if (l >= 0) {
+				votes[l]++;
+			}
+		}
+
+		/**
+		 * @param votes the number of votes for each label
+		 * @return {the label with the most votes (ties going to the smaller label),
+		 *         the fraction of the votes it got}
+		 */
+		private double[] count(int[] votes) {
+			int best = 0;
+			for (int l = 1; l < votes.length; l++) {
+				if (votes[l] > votes[best]) {
+					best = l;
+				}
+			}
+
+			return new double[] { labels[best], votes[best] / (double) trees.length };
+		}
+
+		@Override
+		public long memoryFootprint() {
+			long bytes = OBJECT_BYTES + Model.arrayBytes(labels.length, 8) + Model.arrayBytes(trees.length, 8);
+			for (DecisionTreeModel tree : trees) {
+				bytes += tree.memoryFootprint();
+			}
+			return bytes;
+		}
+	}
+}
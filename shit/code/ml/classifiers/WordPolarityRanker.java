@@ -0,0 +1,249 @@
+package ml.classifiers;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Ranks words by how strongly they are associated with each label, using the
+ * count tables of a trained NBClassifier. The polarity of a word for a label
+ * is count(word, label) / count(word), and only words that occur at least
+ * cutoff times with the label are ranked.
+ *
+ * All ratios are computed in one pass over the vocabulary, and only the k
+ * lowest and k highest ranked words are kept for each label, so memory does
+ * not grow with the vocabulary.
+ */
+public class WordPolarityRanker {
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	private double[] labelIds;
+	private HashMap<Integer, String> featureMap;
+	private int[] featureIds;
+	private int cutoff;
+
+	// for each label, the lowest and the highest ranked words
+	private BoundedHeap[] lowest;
+	private BoundedHeap[] highest;
+	private int[] numRanked;
+
+	/**
+	 * Rank the words of a trained classifier.
+	 *
+	 * @param nb         a trained classifier
+	 * @param featureMap mapping from feature index to word
+	 * @param cutoff     min number of times a word must occur with a label
+	 * @param k          number of words to keep at each end of the rankings
+	 */
+	public WordPolarityRanker(NBClassifier nb, HashMap<Integer, String> featureMap, int cutoff, int k) {
+		this.labelIds = nb.getLabelIds();
+		this.featureIds = nb.getFeatureIds();
+		this.featureMap = featureMap;
+		this.cutoff = cutoff;
+
+		int[][] counts = nb.getFeatureCounts();
+		int numLabels = labelIds.length;
+		int capacity = Math.min(k, featureIds.length);
+
+		lowest = new BoundedHeap[numLabels];
+		highest = new BoundedHeap[numLabels];
+		numRanked = new int[numLabels];
+		for (int l = 0; l < numLabels; l++) {
+			lowest[l] = new BoundedHeap(capacity, false);
+			highest[l] = new BoundedHeap(capacity, true);
+		}
+
+		for (int j = 0; j < featureIds.length; j++) {
+			int total = 0;
+			for (int l = 0; l < numLabels; l++) {
+				total += counts[l][j];
+			}
+
+			for (int l = 0; l < numLabels; l++) {
+				int count = counts[l][j];
+
+				// Only incl if count is greater than/equal to cutoff
+				if (count > 0 && count >= cutoff) {
+					double ratio = count / (double) total;
+					lowest[l].offer(ratio, j);
+					highest[l].offer(ratio, j);
+					numRanked[l]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the ranking for label to name.txt, in increasing order of polarity. If
+	 * more than 2k words qualify, only the k lowest and k highest are written.
+	 *
+	 * @param label the label to write the ranking for
+	 * @param name  the name of the label, used for the file name and the header
+	 */
+	public void writeRankingFile(double label, String name) {
+		int l = -1;
+		for (int i = 0; i < labelIds.length; i++) {
+			if (labelIds[i] == label) {
+				l = i;
+			}
+		}
+		if (l < 0) {
+			throw new RuntimeException("Label not found: " + label);
+		}
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(name + ".txt"), WRITE_BUFFER_SIZE)) {
+			writer.write("Most" + name + "words, where count(word)>=" + cutoff);
+			writer.newLine();
+
+			BoundedHeap low = lowest[l];
+			BoundedHeap high = highest[l];
+			low.sort();
+			high.sort();
+
+			for (int i = 0; i < low.size; i++) {
+				writeEntry(writer, low.scores[i], low.columns[i]);
+			}
+
+			// the two ends overlap when fewer than 2k words qualify
+			for (int i = 0; i < high.size; i++) {
+				if (low.size == 0 || compare(high.scores[i], high.columns[i], low.scores[low.size - 1],
+						low.columns[low.size - 1]) > 0) {
+					writeEntry(writer, high.scores[i], high.columns[i]);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param label
+	 * @return the number of words that met the cutoff for label
+	 */
+	public int getNumRanked(double label) {
+		for (int i = 0; i < labelIds.length; i++) {
+			if (labelIds[i] == label) {
+				return numRanked[i];
+			}
+		}
+		return 0;
+	}
+
+	private void writeEntry(BufferedWriter writer, double score, int column) throws IOException {
+		writer.write(String.valueOf(featureMap.get(featureIds[column])));
+		writer.write('\t');
+		writer.write(Double.toString(score));
+		writer.newLine();
+	}
+
+	/**
+	 * Order by score, breaking ties by column so the rankings are deterministic
+	 */
+	private static int compare(double score1, int column1, double score2, int column2) {
+		int c = Double.compare(score1, score2);
+		return c != 0 ? c : Integer.compare(column1, column2);
+	}
+
+	/**
+	 * A fixed capacity binary heap over (score, column) pairs stored in primitive
+	 * arrays. Keeps either the largest or the smallest entries offered to it.
+	 */
+	private static class BoundedHeap {
+		private double[] scores;
+		private int[] columns;
+		private int size = 0;
+		private boolean keepLargest;
+		private boolean sorted = false;
+
+		public BoundedHeap(int capacity, boolean keepLargest) {
+			scores = new double[capacity];
+			columns = new int[capacity];
+			this.keepLargest = keepLargest;
+		}
+
+		/**
+		 * Whether the first entry should be closer to the root than the second, i.e.
+		 * it would be evicted first
+		 */
+		private boolean above(double score1, int column1, double score2, int column2) {
+			int c = compare(score1, column1, score2, column2);
+			return keepLargest ? c < 0 : c > 0;
+		}
+
+		public void offer(double score, int column) {
+			if (size < scores.length) {
+				int i = size++;
+				while (i > 0) {
+					int parent = (i - 1) >>> 1;
+					if (!above(score, column, scores[parent], columns[parent])) {
+						break;
+					}
+					scores[i] = scores[parent];
+					columns[i] = columns[parent];
+					i = parent;
+				}
+				scores[i] = score;
+				columns[i] = column;
+			} else if (size > 0 && above(scores[0], columns[0], score, column)) {
+				siftDown(score, column, size);
+			}
+		}
+
+		/**
+		 * Put (score, column) at the root and sift it down within the first n entries
+		 */
+		private void siftDown(double score, int column, int n) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= n) {
+					break;
+				}
+				if (child + 1 < n && above(scores[child + 1], columns[child + 1], scores[child], columns[child])) {
+					child++;
+				}
+				if (!above(scores[child], columns[child], score, column)) {
+					break;
+				}
+				scores[i] = scores[child];
+				columns[i] = columns[child];
+				i = child;
+			}
+			scores[i] = score;
+			columns[i] = column;
+		}
+
+		/**
+		 * Heap sort the entries into increasing order. The heap can't be offered to
+		 * after this.
+		 */
+		public void sort() {
+			if (sorted) {
+				return;
+			}
+			sorted = true;
+
+			// repeatedly move the root (the first to be evicted) to the end
+			for (int n = size - 1; n > 0; n--) {
+				double score = scores[n];
+				int column = columns[n];
+				scores[n] = scores[0];
+				columns[n] = columns[0];
+				siftDown(score, column, n);
+			}
+
+			// that leaves a min-heap of the largest in decreasing order
+			if (keepLargest) {
+				for (int i = 0, j = size - 1; i < j; i++, j--) {
+					double score = scores[i];
+					scores[i] = scores[j];
+					scores[j] = score;
+					int column = columns[i];
+					columns[i] = columns[j];
+					columns[j] = column;
+				}
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package ml.data;
 
 import java.util.Collections;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
@@ -19,6 +20,10 @@ public class Example {
 	private HashMap<Integer, Double> sparseData;
 	private double label;  // the label (assuming it has one)
 	
+	// sorted array copy of sparseData for fast iteration, built on first use and
+	// thrown away whenever the features change
+	private SparseArrays sparseArrays;
+	
 	public Example(){
 		sparseData = new HashMap<Integer, Double>();
 	}
@@ -37,6 +42,7 @@ public class Example {
 	 */
 	public void addFeature(int featureNum, double value){
 		sparseData.put(featureNum, value);
+		sparseArrays = null;
 	}
 		
 	/**
@@ -57,6 +63,7 @@ public class Example {
 	 */
 	public void setFeature(int featureNum, double value){
 		sparseData.put(featureNum, value);
+		sparseArrays = null;
 	}
 	
 	/**
@@ -68,6 +75,37 @@ public class Example {
 		return sparseData.keySet();
 	}
 	
+	/**
+	 * Get the indices of the features this example has, in increasing order.  The
+	 * array is shared, so it must not be modified.
+	 * 
+	 * @return the feature indices
+	 */
+	public int[] getSparseIndices(){
+		return getSparseArrays().indices;
+	}
+	
+	/**
+	 * Get the values of the features this example has, in the same order as
+	 * getSparseIndices.  The array is shared, so it must not be modified.
+	 * 
+	 * @return the feature values
+	 */
+	public double[] getSparseValues(){
+		return getSparseArrays().values;
+	}
+	
+	private SparseArrays getSparseArrays(){
+		SparseArrays arrays = sparseArrays;
+		
+		if( arrays == null ){
+			arrays = new SparseArrays(sparseData);
+			sparseArrays = arrays;
+		}
+		
+		return arrays;
+	}
+	
 	/**
 	 * Set the label associated with this example.
 	 * 
@@ -157,4 +195,28 @@ public class Example {
 			return Double.toString(val);
 		}
 	}
+	
+	/**
+	 * Parallel arrays of the feature indices (sorted) and values of an example.
+	 * The fields are final so that an example can be read from multiple threads.
+	 */
+	private static class SparseArrays{
+		private final int[] indices;
+		private final double[] values;
+		
+		public SparseArrays(HashMap<Integer, Double> sparseData){
+			indices = new int[sparseData.size()];
+			
+			int i = 0;
+			for( int featureIndex: sparseData.keySet() ){
+				indices[i++] = featureIndex;
+			}
+			Arrays.sort(indices);
+			
+			values = new double[indices.length];
+			for( i = 0; i < indices.length; i++ ){
+				values[i] = sparseData.get(indices[i]);
+			}
+		}
+	}
 }
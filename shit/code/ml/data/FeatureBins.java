@@ -0,0 +1,258 @@
+package ml.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Quantile bins for the features in a data set, so that learners can find
+ * threshold splits by looking at a few bins per feature rather than sorting
+ * the examples by every feature.
+ *
+ * Each feature gets its own column (in increasing order of feature index)
+ * with at most maxBins bins.  Bin b of a column holds the values v with
+ * upperBound(b-1) < v <= upperBound(b), and the last bin holds everything
+ * above the last upper bound.  If a feature has few enough distinct values,
+ * each value gets its own bin; otherwise the upper bounds are picked so the
+ * bins hold about the same number of training examples.  Examples that don't
+ * have a feature count as having value 0.
+ */
+public class FeatureBins {
+	// columnFeatures[column] is the feature index of the column and
+	// featureColumns[feature index] is its column (-1 if it doesn't have one)
+	private int[] columnFeatures;
+	private int[] featureColumns;
+
+	// the upper bounds of each column's bins, in increasing order (one fewer
+	// than the number of bins)
+	private double[][] upperBounds;
+
+	// binOffsets[column] is the number of bins in all the earlier columns
+	private int[] binOffsets;
+
+	/**
+	 * Bin the features of the examples in data
+	 *
+	 * @param data
+	 * @param maxBins the most bins a feature can have (at least 2)
+	 */
+	public FeatureBins(DataSet data, int maxBins){
+		if( maxBins < 2 ){
+			throw new RuntimeException("Features need at least 2 bins: " + maxBins);
+		}
+
+		columnFeatures = new int[data.getAllFeatureIndices().size()];
+		int maxFeature = -1;
+		int c = 0;
+		for( int featureIndex: data.getAllFeatureIndices() ){
+			columnFeatures[c++] = featureIndex;
+			maxFeature = Math.max(maxFeature, featureIndex);
+		}
+		Arrays.sort(columnFeatures);
+
+		featureColumns = new int[maxFeature+1];
+		Arrays.fill(featureColumns, -1);
+		for( c = 0; c < columnFeatures.length; c++ ){
+			featureColumns[columnFeatures[c]] = c;
+		}
+
+		ArrayList<Example> examples = data.getData();
+		int numColumns = columnFeatures.length;
+
+		// gather each column's stored values
+		int[] numValues = new int[numColumns];
+		for( Example e: examples ){
+			for( int featureIndex: e.getSparseIndices() ){
+				numValues[getColumn(featureIndex)]++;
+			}
+		}
+
+		double[][] columnValues = new double[numColumns][];
+		for( c = 0; c < numColumns; c++ ){
+			columnValues[c] = new double[numValues[c]];
+			numValues[c] = 0;
+		}
+
+		for( Example e: examples ){
+			int[] indices = e.getSparseIndices();
+			double[] values = e.getSparseValues();
+			for( int i = 0; i < indices.length; i++ ){
+				int column = getColumn(indices[i]);
+				columnValues[column][numValues[column]++] = values[i];
+			}
+		}
+
+		upperBounds = new double[numColumns][];
+		binOffsets = new int[numColumns+1];
+		for( c = 0; c < numColumns; c++ ){
+			upperBounds[c] = getUpperBounds(columnValues[c], examples.size(), maxBins);
+			columnValues[c] = null;
+			binOffsets[c+1] = binOffsets[c] + upperBounds[c].length + 1;
+		}
+	}
+
+	/**
+	 * @param stored the values of the examples that have the feature
+	 * @param n the total number of examples (the rest have value 0)
+	 * @param maxBins
+	 * @return the upper bounds of the bins
+	 */
+	private static double[] getUpperBounds(double[] stored, int n, int maxBins){
+		Arrays.sort(stored);
+
+		// the distinct values and how many examples have each, with the zeros
+		// for the missing values merged in
+		int numZeros = n - stored.length;
+		int firstNonNegative = 0;
+		while( firstNonNegative < stored.length && stored[firstNonNegative] < 0.0 ){
+			firstNonNegative++;
+		}
+
+		double[] distinct = new double[stored.length+1];
+		int[] counts = new int[stored.length+1];
+		int numDistinct = 0;
+		for( int i = 0; i <= stored.length; i++ ){
+			if( i == firstNonNegative && numZeros > 0 ){
+				numDistinct = addValue(distinct, counts, numDistinct, 0.0, numZeros);
+			}
+			if( i < stored.length ){
+				numDistinct = addValue(distinct, counts, numDistinct, stored[i], 1);
+			}
+		}
+
+		if( numDistinct <= maxBins ){
+			return Arrays.copyOf(distinct, Math.max(0, numDistinct-1));
+		}
+
+		// cut at the values where the running count passes each quantile
+		double[] bounds = new double[maxBins-1];
+		int numBounds = 0;
+		long seen = 0;
+		for( int d = 0; d < numDistinct-1; d++ ){
+			seen += counts[d];
+			while( numBounds < bounds.length && seen*maxBins >= (long)(numBounds+1)*n ){
+				bounds[numBounds++] = distinct[d];
+			}
+		}
+
+		// drop the repeats from values that covered several quantiles
+		int unique = 0;
+		for( int b = 0; b < numBounds; b++ ){
+			if( unique == 0 || bounds[b] != bounds[unique-1] ){
+				bounds[unique++] = bounds[b];
+			}
+		}
+
+		return Arrays.copyOf(bounds, unique);
+	}
+
+	/**
+	 * Add count examples with value to the sorted distinct values
+	 *
+	 * @return the new number of distinct values
+	 */
+	private static int addValue(double[] distinct, int[] counts, int numDistinct, double value, int count){
+		if( numDistinct > 0 && distinct[numDistinct-1] == value ){
+			counts[numDistinct-1] += count;
+			return numDistinct;
+		}
+
+		distinct[numDistinct] = value;
+		counts[numDistinct] = count;
+		return numDistinct + 1;
+	}
+
+	/**
+	 * @return the number of columns (features)
+	 */
+	public int getNumColumns(){
+		return columnFeatures.length;
+	}
+
+	/**
+	 * @param featureIndex
+	 * @return the column of the feature, or -1 if it wasn't in the data
+	 */
+	public int getColumn(int featureIndex){
+		return featureIndex < featureColumns.length ? featureColumns[featureIndex] : -1;
+	}
+
+	/**
+	 * @param column
+	 * @return the feature index of the column
+	 */
+	public int getFeature(int column){
+		return columnFeatures[column];
+	}
+
+	/**
+	 * @param column
+	 * @return the number of bins the column has
+	 */
+	public int getNumBins(int column){
+		return binOffsets[column+1] - binOffsets[column];
+	}
+
+	/**
+	 * Get where each column's bins start if all the bins are numbered one after
+	 * another, e.g. for a flat histogram.  The array is shared, so it must not be
+	 * modified.
+	 *
+	 * @return the number of bins before each column, with the total number of
+	 * bins at the end
+	 */
+	public int[] getBinOffsets(){
+		return binOffsets;
+	}
+
+	/**
+	 * @param column
+	 * @param bin any bin but the last
+	 * @return the largest value in the bin
+	 */
+	public double getUpperBound(int column, int bin){
+		return upperBounds[column][bin];
+	}
+
+	/**
+	 * @param column
+	 * @param value
+	 * @return the bin value falls in for the column
+	 */
+	public int getBin(int column, double value){
+		double[] bounds = upperBounds[column];
+		int low = 0;
+		int high = bounds.length;
+
+		// first bound >= value
+		while( low < high ){
+			int mid = (low + high) >>> 1;
+			if( bounds[mid] < value ){
+				low = mid + 1;
+			}else{
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Get the bins of an example's stored features
+	 *
+	 * @param e
+	 * @return the bin of each feature in e.getSparseIndices(), or -1 for the
+	 * features that weren't in the data
+	 */
+	public int[] getBins(Example e){
+		int[] indices = e.getSparseIndices();
+		double[] values = e.getSparseValues();
+		int[] bins = new int[indices.length];
+
+		for( int i = 0; i < indices.length; i++ ){
+			int column = getColumn(indices[i]);
+			bins[i] = column == -1 ? -1 : getBin(column, values[i]);
+		}
+
+		return bins;
+	}
+}
@@ -0,0 +1,94 @@
+package ml.utils;
+
+import java.util.Arrays;
+
+/**
+ * Sums of statistics (e.g. label counts or gradients) over the bins of many
+ * columns, stored in one flat array.  The bins are numbered one after another
+ * across the columns, as described by the offsets, and each bin has the same
+ * number of statistics.
+ */
+public class Histogram {
+	private int[] binOffsets;
+	private int numStatistics;
+	private double[] sums;
+
+	/**
+	 * @param binOffsets the number of bins before each column, with the total
+	 * number of bins at the end
+	 * @param numStatistics the number of statistics per bin
+	 */
+	public Histogram(int[] binOffsets, int numStatistics){
+		this.binOffsets = binOffsets;
+		this.numStatistics = numStatistics;
+		sums = new double[binOffsets[binOffsets.length-1]*numStatistics];
+	}
+
+	/**
+	 * Add amount to a statistic of a bin
+	 *
+	 * @param column
+	 * @param bin
+	 * @param statistic
+	 * @param amount
+	 */
+	public void add(int column, int bin, int statistic, double amount){
+		sums[(binOffsets[column] + bin)*numStatistics + statistic] += amount;
+	}
+
+	/**
+	 * @param column
+	 * @param bin
+	 * @param statistic
+	 * @return the sum of the statistic for the bin
+	 */
+	public double get(int column, int bin, int statistic){
+		return sums[(binOffsets[column] + bin)*numStatistics + statistic];
+	}
+
+	/**
+	 * @param column
+	 * @return the number of bins the column has
+	 */
+	public int getNumBins(int column){
+		return binOffsets[column+1] - binOffsets[column];
+	}
+
+	/**
+	 * @return the number of statistics per bin
+	 */
+	public int getNumStatistics(){
+		return numStatistics;
+	}
+
+	/**
+	 * Add other to this histogram, e.g. to combine histograms counted over
+	 * different examples.
+	 *
+	 * @param other a histogram with the same bins and statistics
+	 */
+	public void add(Histogram other){
+		for( int i = 0; i < sums.length; i++ ){
+			sums[i] += other.sums[i];
+		}
+	}
+
+	/**
+	 * Subtract other from this histogram, e.g. to get one child's histogram from
+	 * its parent's and its sibling's.
+	 *
+	 * @param other a histogram with the same bins and statistics
+	 */
+	public void subtract(Histogram other){
+		for( int i = 0; i < sums.length; i++ ){
+			sums[i] -= other.sums[i];
+		}
+	}
+
+	/**
+	 * Set all the sums to 0
+	 */
+	public void clear(){
+		Arrays.fill(sums, 0.0);
+	}
+}